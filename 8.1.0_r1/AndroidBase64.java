@@ -636,4 +636,5 @@ public class AndroidBase64 {
             return true;
         }
     }
+    private AndroidBase64() { }   // don't instantiate
 }
@@ -0,0 +1,271 @@
+package javax.crypto;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact binary form of {@link CryptoEvent}s, selected with log.format=binary.
+ * One instance per output file, used by the writer thread only.
+ *
+ * <pre>
+ * file    := record*
+ * record  := type:u8 length:varint payload[length]
+ *   'H' header : "CLOG" version:u8      starts a new string/stack scope
+ *   'S' string : id:varint utf8         string table entry, utf8 runs to the end
+ *   'K' stack  : id:varint utf8         StackCapture.formatFrames() text, same
+ *   'E' event  : tag:str stackId:varint fieldCount:varint field*
+ * field   := kind:u8 ...
+ *   1 string     : name:str value:str
+ *   2 long       : name:str value:zigzag varint
+ *   3 bytes      : name:str? base64Name:str? len:varint raw   (text + Base64 pair)
+ *   4 hex        : name:str len:varint raw
+ *   5 raw string : name:str len:varint utf8
+ * str  := varint id of an earlier 'S' record; str? is id + 1, 0 for none
+ * </pre>
+ *
+ * Field names, tags and short values (algorithm, provider, transformation,
+ * opmode ...) go through the string table, so a repeated event is mostly
+ * its raw payload bytes. Every process that appends to the file starts with
+ * a header, which resets the tables; stack ids are the ones of the text
+ * format, with the pid in the high bits. A stack that has no id (table full or
+ * stack.dedup=false) is stored as a "StackTrace" bytes field, so it decodes
+ * to the same Base64 text the JSON format uses.
+ */
+final class BinaryEventEncoder {
+    static final byte[] MAGIC = {'C', 'L', 'O', 'G'};
+    static final int VERSION = 1;
+
+    static final byte RECORD_HEADER = 'H';
+    static final byte RECORD_STRING = 'S';
+    static final byte RECORD_STACK = 'K';
+    static final byte RECORD_EVENT = 'E';
+
+    static final byte FIELD_RAW_STRING = 5;
+
+    private static final int MAX_STRINGS = 4096;
+    private static final int MAX_INTERNED_LENGTH = 64;
+
+    private final HashMap<String, Integer> strings = new HashMap<>();
+    private final BitSet definedStacks = new BitSet();
+    private final Payload payload = new Payload();
+    private boolean headerWritten;
+
+    /**
+     * Appends the records of one event to <code>out</code>: the header and
+     * any new string/stack definitions first, then the event itself.
+     */
+    void encode(String tag, CryptoEvent event, StackTraceElement[] frames, int stackId, ByteArrayOutputStream out) {
+        if (!headerWritten) {
+            payload.reset();
+            payload.write(MAGIC, 0, MAGIC.length);
+            payload.writeByte(VERSION);
+            payload.writeTo(RECORD_HEADER, out);
+            headerWritten = true;
+        }
+        if (frames != null && stackId != 0 && !definedStacks.get(stackId)) {
+            payload.reset();
+            payload.writeVarint(StackTable.writtenId(stackId));
+            payload.writeUtf8Raw(StackCapture.formatFrames(frames));
+            payload.writeTo(RECORD_STACK, out);
+            definedStacks.set(stackId);
+        }
+
+        // define every string first, the event payload is built afterwards
+        int tagId = id(tag, out);
+        int[] nameIds = new int[event.count * 2];
+        int[] valueIds = new int[event.count];
+        for (int i = 0; i < event.count; i++) {
+            nameIds[2 * i] = event.names[i] == null ? -1 : id(event.names[i], out);
+            nameIds[2 * i + 1] = event.base64Names[i] == null ? -1 : id(event.base64Names[i], out);
+            valueIds[i] = event.types[i] == CryptoEvent.TYPE_STRING ? internedId(event.strings[i], out) : -1;
+        }
+        byte[] inlineStack = null;
+        int stackTraceId = -1;
+        if (frames != null && stackId == 0) {
+            inlineStack = StackCapture.formatFrames(frames).getBytes(StandardCharsets.UTF_8);
+            stackTraceId = id("StackTrace", out);
+        }
+
+        payload.reset();
+        payload.writeVarint(tagId);
+        payload.writeVarint(stackId == 0 ? 0 : StackTable.writtenId(stackId));
+        payload.writeVarint(event.count + (inlineStack == null ? 0 : 1));
+        for (int i = 0; i < event.count; i++) {
+            switch (event.types[i]) {
+                case CryptoEvent.TYPE_STRING:
+                    if (valueIds[i] >= 0) {
+                        payload.writeByte(CryptoEvent.TYPE_STRING);
+                        payload.writeVarint(nameIds[2 * i]);
+                        payload.writeVarint(valueIds[i]);
+                    } else {
+                        payload.writeByte(FIELD_RAW_STRING);
+                        payload.writeVarint(nameIds[2 * i]);
+                        payload.writeUtf8(event.strings[i]);
+                    }
+                    break;
+                case CryptoEvent.TYPE_LONG:
+                    payload.writeByte(CryptoEvent.TYPE_LONG);
+                    payload.writeVarint(nameIds[2 * i]);
+                    long v = event.longs[i];
+                    payload.writeVarint((v << 1) ^ (v >> 63));
+                    break;
+                case CryptoEvent.TYPE_BYTES:
+                    payload.writeByte(CryptoEvent.TYPE_BYTES);
+                    payload.writeVarint(nameIds[2 * i] + 1);
+                    payload.writeVarint(nameIds[2 * i + 1] + 1);
+                    payload.writeBytes(event.bytes[i]);
+                    break;
+                case CryptoEvent.TYPE_HEX:
+                    payload.writeByte(CryptoEvent.TYPE_HEX);
+                    payload.writeVarint(nameIds[2 * i]);
+                    payload.writeBytes(event.bytes[i]);
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (inlineStack != null) {
+            payload.writeByte(CryptoEvent.TYPE_BYTES);
+            payload.writeVarint(0);
+            payload.writeVarint(stackTraceId + 1);
+            payload.writeBytes(inlineStack);
+        }
+        payload.writeTo(RECORD_EVENT, out);
+    }
+
+    /**
+     * Appends to <code>out</code> everything this file already defines:
+     * the header, the string table and the stacks. Lets a reader that
+     * missed them (the collector after a gap) decode what follows.
+     */
+    void writeDefinitions(StackTable stackTable, ByteArrayOutputStream out) {
+        if (!headerWritten) {
+            return;
+        }
+        payload.reset();
+        payload.write(MAGIC, 0, MAGIC.length);
+        payload.writeByte(VERSION);
+        payload.writeTo(RECORD_HEADER, out);
+        String[] byId = new String[strings.size()];
+        for (Map.Entry<String, Integer> e : strings.entrySet()) {
+            byId[e.getValue()] = e.getKey();
+        }
+        for (int id = 0; id < byId.length; id++) {
+            payload.reset();
+            payload.writeVarint(id);
+            payload.writeUtf8Raw(byId[id]);
+            payload.writeTo(RECORD_STRING, out);
+        }
+        for (int id = definedStacks.nextSetBit(0); id >= 0; id = definedStacks.nextSetBit(id + 1)) {
+            payload.reset();
+            payload.writeVarint(StackTable.writtenId(id));
+            payload.writeUtf8Raw(StackCapture.formatFrames(stackTable.frames(id)));
+            payload.writeTo(RECORD_STACK, out);
+        }
+    }
+
+    /**
+     * Id of a string that has to be in the table (tags and field names).
+     */
+    private int id(String s, ByteArrayOutputStream out) {
+        Integer id = strings.get(s);
+        if (id != null) {
+            return id;
+        }
+        int newId = strings.size();
+        strings.put(s, newId);
+        Payload def = new Payload();
+        def.writeVarint(newId);
+        def.writeUtf8Raw(s);
+        def.writeTo(RECORD_STRING, out);
+        return newId;
+    }
+
+    /**
+     * Id of a short string value, or -1 when it should be written inline.
+     */
+    private int internedId(String s, ByteArrayOutputStream out) {
+        Integer id = strings.get(s);
+        if (id != null) {
+            return id;
+        }
+        if (s.length() > MAX_INTERNED_LENGTH || strings.size() >= MAX_STRINGS) {
+            return -1;
+        }
+        return id(s, out);
+    }
+
+    /**
+     * Growable payload buffer, reused for every record.
+     */
+    private static final class Payload {
+        // don't keep the buffer of one huge event around
+        private static final int MAX_RETAINED = 1024 * 1024;
+
+        private byte[] buf = new byte[256];
+        private int len;
+
+        void reset() {
+            len = 0;
+            if (buf.length > MAX_RETAINED) {
+                buf = new byte[256];
+            }
+        }
+
+        private void ensure(int extra) {
+            if (len + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(len + extra, buf.length * 2));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[len++] = (byte) b;
+        }
+
+        void write(byte[] b, int off, int n) {
+            ensure(n);
+            System.arraycopy(b, off, buf, len, n);
+            len += n;
+        }
+
+        void writeVarint(long v) {
+            ensure(10);
+            while ((v & ~0x7fL) != 0) {
+                buf[len++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            buf[len++] = (byte) v;
+        }
+
+        void writeBytes(byte[] b) {
+            writeVarint(b.length);
+            write(b, 0, b.length);
+        }
+
+        void writeUtf8(String s) {
+            writeBytes(s.getBytes(StandardCharsets.UTF_8));
+        }
+
+        // rest of the record, no length prefix
+        void writeUtf8Raw(String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            write(b, 0, b.length);
+        }
+
+        void writeTo(byte type, ByteArrayOutputStream out) {
+            out.write(type);
+            long v = len;
+            while ((v & ~0x7fL) != 0) {
+                out.write((int) ((v & 0x7f) | 0x80));
+                v >>>= 7;
+            }
+            out.write((int) v);
+            out.write(buf, 0, len);
+        }
+    }
+}
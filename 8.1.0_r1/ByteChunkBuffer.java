@@ -0,0 +1,183 @@
+package javax.crypto;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * Growable primitive byte accumulator used to collect the data passed to
+ * <code>update</code> until <code>doFinal</code>/<code>digest</code>.
+ *
+ * Bytes are kept in a list of chunks, so appending never moves data that is
+ * already stored. A single large append into an empty buffer gets its own
+ * exactly sized chunk, which {@link #drain()} can hand out without copying.
+ */
+public final class ByteChunkBuffer {
+    private static final int FIRST_CHUNK_SIZE = 256;
+    private static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+    private byte[][] chunks = new byte[4][];
+    // number of chunks in use
+    private int chunkCount = 0;
+    // bytes used in the last chunk
+    private int tailUsed = 0;
+    private int size = 0;
+
+    public ByteChunkBuffer() {
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void append(byte b) {
+        if (chunkCount == 0 || tailUsed == chunks[chunkCount - 1].length) {
+            addChunk(1);
+        }
+        chunks[chunkCount - 1][tailUsed++] = b;
+        size++;
+    }
+
+    public void append(byte[] input) {
+        if (input != null) {
+            append(input, 0, input.length);
+        }
+    }
+
+    public void append(byte[] input, int offset, int len) {
+        if (len <= 0) {
+            return;
+        }
+        if (Integer.MAX_VALUE - size < len) {
+            throw new OutOfMemoryError("ByteChunkBuffer overflow");
+        }
+        if (size == 0 && len > FIRST_CHUNK_SIZE && chunkCount > 0) {
+            // the retained small chunk is not worth it for a big update
+            chunks[0] = null;
+            chunkCount = 0;
+        }
+        while (len > 0) {
+            if (chunkCount == 0 || tailUsed == chunks[chunkCount - 1].length) {
+                addChunk(len);
+            }
+            byte[] tail = chunks[chunkCount - 1];
+            int n = Math.min(len, tail.length - tailUsed);
+            System.arraycopy(input, offset, tail, tailUsed, n);
+            tailUsed += n;
+            size += n;
+            offset += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Reads <code>len</code> bytes from <code>src</code> straight into the
+     * chunks, advancing its position. Works for direct and read-only
+     * buffers; pass a duplicate to leave the caller's buffer alone.
+     */
+    public void append(ByteBuffer src, int len) {
+        if (len <= 0) {
+            return;
+        }
+        if (Integer.MAX_VALUE - size < len) {
+            throw new OutOfMemoryError("ByteChunkBuffer overflow");
+        }
+        if (size == 0 && len > FIRST_CHUNK_SIZE && chunkCount > 0) {
+            chunks[0] = null;
+            chunkCount = 0;
+        }
+        while (len > 0) {
+            if (chunkCount == 0 || tailUsed == chunks[chunkCount - 1].length) {
+                addChunk(len);
+            }
+            byte[] tail = chunks[chunkCount - 1];
+            int n = Math.min(len, tail.length - tailUsed);
+            src.get(tail, tailUsed, n);
+            tailUsed += n;
+            size += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Returns the collected bytes as one array and empties the buffer.
+     * When all data sits in one full chunk that chunk itself is returned.
+     */
+    public byte[] drain() {
+        byte[] out;
+        if (size == 0) {
+            out = new byte[0];
+        } else if (chunkCount == 1 && tailUsed == chunks[0].length) {
+            out = chunks[0];
+            chunks[0] = null;
+        } else {
+            out = toByteArray();
+        }
+        reset();
+        return out;
+    }
+
+    /**
+     * Returns a copy of the collected bytes, leaving the buffer untouched.
+     */
+    public byte[] toByteArray() {
+        byte[] out = new byte[size];
+        int pos = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            int n = (i == chunkCount - 1) ? tailUsed : chunks[i].length;
+            System.arraycopy(chunks[i], 0, out, pos, n);
+            pos += n;
+        }
+        return out;
+    }
+
+    /**
+     * Feeds the collected bytes to <code>checksum</code>, leaving the buffer untouched.
+     */
+    void updateChecksum(Checksum checksum) {
+        for (int i = 0; i < chunkCount; i++) {
+            int n = (i == chunkCount - 1) ? tailUsed : chunks[i].length;
+            checksum.update(chunks[i], 0, n);
+        }
+    }
+
+    public void clear() {
+        reset();
+    }
+
+    private void reset() {
+        // keep a small first chunk around for the next operation, drop the rest
+        byte[] first = (chunkCount > 0 && chunks[0] != null
+                && chunks[0].length == FIRST_CHUNK_SIZE) ? chunks[0] : null;
+        for (int i = 0; i < chunkCount; i++) {
+            chunks[i] = null;
+        }
+        chunkCount = 0;
+        tailUsed = 0;
+        size = 0;
+        if (first != null) {
+            chunks[0] = first;
+            chunkCount = 1;
+        }
+    }
+
+    private void addChunk(int wanted) {
+        int chunkSize;
+        if (size == 0 && wanted > FIRST_CHUNK_SIZE) {
+            // one big update: give it an exact chunk so drain() needs no copy
+            chunkSize = wanted;
+        } else {
+            chunkSize = Math.max(FIRST_CHUNK_SIZE, Math.min(size, MAX_CHUNK_SIZE));
+        }
+        if (chunkCount == chunks.length) {
+            byte[][] grown = new byte[chunks.length * 2][];
+            System.arraycopy(chunks, 0, grown, 0, chunkCount);
+            chunks = grown;
+        }
+        chunks[chunkCount++] = new byte[chunkSize];
+        tailUsed = 0;
+    }
+}
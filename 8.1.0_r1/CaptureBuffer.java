@@ -0,0 +1,240 @@
+package javax.crypto;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Bounded capture of a payload that may arrive in pieces (update() calls
+ * followed by doFinal/digest).
+ *
+ * The first <code>headLimit</code> bytes are kept in a {@link ByteChunkBuffer},
+ * the last <code>tailLimit</code> bytes in a fixed ring, and everything in
+ * between is only counted. Memory stays at headLimit + tailLimit no matter
+ * how long the stream is (e.g. CipherInputStream over a large file). Once
+ * bytes start being dropped a CRC32 of the whole stream is kept
+ * incrementally, so a truncated record still identifies its input. Limits
+ * come from {@link CapturePolicy}.
+ */
+public final class CaptureBuffer {
+    private static final int BYTE_BUFFER_STEP = 8 * 1024;
+    private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BYTE_BUFFER_STEP];
+        }
+    };
+
+    private final int headLimit;
+    private final int tailLimit;
+    private final ByteChunkBuffer head = new ByteChunkBuffer();
+    // ring holding the last tailLimit bytes after the head is full
+    private byte[] tail;
+    private int tailPos;
+    private int tailCount;
+    private long total;
+    // only once the stream no longer fits, covers every byte appended
+    private CRC32 crc;
+
+    public CaptureBuffer(int headLimit, int tailLimit) {
+        this.headLimit = Math.max(0, headLimit);
+        this.tailLimit = Math.max(0, tailLimit);
+    }
+
+    public boolean isEmpty() {
+        return total == 0;
+    }
+
+    /**
+     * Number of bytes appended since the last clear, kept or not.
+     */
+    public long totalLength() {
+        return total;
+    }
+
+    public boolean isTruncated() {
+        return total > head.size() + tailCount;
+    }
+
+    public void append(byte b) {
+        total++;
+        if (head.size() < headLimit) {
+            head.append(b);
+        } else {
+            appendTail(b);
+        }
+    }
+
+    public void append(byte[] input, int offset, int len) {
+        if (input == null || len <= 0) {
+            return;
+        }
+        total += len;
+        int toHead = Math.min(len, headLimit - head.size());
+        if (toHead > 0) {
+            head.append(input, offset, toHead);
+            offset += toHead;
+            len -= toHead;
+        }
+        if (len > 0) {
+            appendTail(input, offset, len);
+        }
+    }
+
+    /**
+     * Appends <code>len</code> bytes starting at <code>src.position()</code>
+     * without moving the buffer's position. Heap buffers are read from their
+     * backing array; direct and read-only buffers are bulk-copied into the
+     * head chunks, and only bytes past the head go through a pooled
+     * per-thread scratch array.
+     */
+    public void append(ByteBuffer src, int len) {
+        if (src == null || len <= 0) {
+            return;
+        }
+        if (src.hasArray()) {
+            append(src.array(), src.arrayOffset() + src.position(), len);
+            return;
+        }
+        ByteBuffer dup = src.duplicate();
+        total += len;
+        int toHead = Math.min(len, headLimit - head.size());
+        if (toHead > 0) {
+            head.append(dup, toHead);
+            len -= toHead;
+        }
+        if (len > 0) {
+            byte[] step = scratch.get();
+            while (len > 0) {
+                int n = Math.min(len, step.length);
+                dup.get(step, 0, n);
+                appendTail(step, 0, n);
+                len -= n;
+            }
+        }
+    }
+
+    /**
+     * Whether writing to <code>b</code> may change the bytes of
+     * <code>a</code>, e.g. an in-place Cipher call on two views of one array.
+     */
+    static boolean mayOverlap(ByteBuffer a, ByteBuffer b) {
+        if (a.isDirect() && b.isDirect()) {
+            return true;
+        }
+        if (a.hasArray()) {
+            return b.hasArray() && a.array() == b.array();
+        }
+        // read-only heap view: its array is not reachable, assume the worst
+        return !a.isDirect() && !b.isDirect();
+    }
+
+    /**
+     * Copy of the <code>remaining()</code> bytes of <code>src</code>, for
+     * input that the engine call might overwrite.
+     */
+    static ByteBuffer snapshot(ByteBuffer src) {
+        byte[] copy = new byte[src.remaining()];
+        src.duplicate().get(copy);
+        return ByteBuffer.wrap(copy);
+    }
+
+    private void startCrc() {
+        if (crc == null) {
+            // first overflow: the head is everything seen so far
+            crc = new CRC32();
+            head.updateChecksum(crc);
+        }
+    }
+
+    private void appendTail(byte b) {
+        startCrc();
+        crc.update(b);
+        if (tailLimit == 0) {
+            return;
+        }
+        if (tail == null) {
+            tail = new byte[tailLimit];
+        }
+        tail[tailPos] = b;
+        tailPos = (tailPos + 1) % tailLimit;
+        if (tailCount < tailLimit) {
+            tailCount++;
+        }
+    }
+
+    private void appendTail(byte[] input, int offset, int len) {
+        startCrc();
+        crc.update(input, offset, len);
+        if (tailLimit == 0) {
+            return;
+        }
+        if (tail == null) {
+            tail = new byte[tailLimit];
+        }
+        if (len >= tailLimit) {
+            System.arraycopy(input, offset + len - tailLimit, tail, 0, tailLimit);
+            tailPos = 0;
+            tailCount = tailLimit;
+            return;
+        }
+        int first = Math.min(len, tailLimit - tailPos);
+        System.arraycopy(input, offset, tail, tailPos, first);
+        System.arraycopy(input, offset + first, tail, 0, len - first);
+        tailPos = (tailPos + len) % tailLimit;
+        tailCount = Math.min(tailLimit, tailCount + len);
+    }
+
+    /**
+     * Head and tail bytes as one array; empties the buffer.
+     */
+    public byte[] drain() {
+        byte[] out;
+        if (tailCount == 0) {
+            out = head.drain();
+        } else {
+            int headSize = head.size();
+            out = new byte[headSize + tailCount];
+            System.arraycopy(head.drain(), 0, out, 0, headSize);
+            int start = (tailPos - tailCount + tailLimit) % tailLimit;
+            int first = Math.min(tailCount, tailLimit - start);
+            System.arraycopy(tail, start, out, headSize, first);
+            System.arraycopy(tail, 0, out, headSize + first, tailCount - first);
+        }
+        clear();
+        return out;
+    }
+
+    /**
+     * Puts the captured bytes into <code>event</code> as the
+     * <code>name</code>/<code>base64Name</code> pair and empties the buffer.
+     * A truncated capture also gets <code>name + "Length"</code> with the
+     * full stream length and <code>name + "Crc32"</code> with the CRC32 of
+     * the full stream as 8 hex digits; the kept bytes are the head followed
+     * by the tail.
+     */
+    public void drainInto(CryptoEvent event, String name, String base64Name) {
+        boolean truncated = isTruncated();
+        long length = total;
+        long checksum = crc == null ? 0 : crc.getValue();
+        event.adoptBytes(name, base64Name, drain());
+        if (truncated) {
+            event.put(name + "Length", length);
+            event.put(name + "Crc32", String.format("%08x", checksum));
+        } else {
+            event.remove(name + "Length");
+            event.remove(name + "Crc32");
+        }
+    }
+
+    public void clear() {
+        head.clear();
+        tailPos = 0;
+        tailCount = 0;
+        total = 0;
+        crc = null;
+        // a big ring is not kept around between operations
+        if (tail != null && tail.length > 4096) {
+            tail = null;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package javax.crypto;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * How much of a payload is kept in a log record, per algorithm.
+ *
+ * A payload longer than headBytes + tailBytes is logged as its first
+ * headBytes and last tailBytes, plus its full length and a CRC32 of all of
+ * it, see {@link CaptureBuffer}. Options (monitor_options):
+ * <pre>
+ * capture.headBytes=4096           default for every algorithm
+ * capture.tailBytes=1024
+ * capture.AES.headBytes=1048576    raise it for the algorithms of interest
+ * capture.SHA-256.headBytes=1024   per algorithm, name in upper case
+ * capture.HMACSHA256.tailBytes=0   (for Cipher the part before the first '/')
+ * </pre>
+ */
+public final class CapturePolicy {
+    private static final int DEFAULT_HEAD_BYTES = LoggerOptions.getInt("capture.headBytes", 4 * 1024);
+    private static final int DEFAULT_TAIL_BYTES = LoggerOptions.getInt("capture.tailBytes", 1024);
+
+    private static final ConcurrentHashMap<String, CapturePolicy> policies = new ConcurrentHashMap<>();
+
+    public final int headBytes;
+    public final int tailBytes;
+
+    private CapturePolicy(int headBytes, int tailBytes) {
+        this.headBytes = headBytes;
+        this.tailBytes = tailBytes;
+    }
+
+    /**
+     * Policy for a Cipher transformation ("AES/CBC/PKCS5Padding") or a
+     * Mac/MessageDigest algorithm name; case does not matter.
+     */
+    public static CapturePolicy forAlgorithm(String algorithm) {
+        String key = algorithm == null ? "" : algorithm;
+        CapturePolicy policy = policies.get(key);
+        if (policy == null) {
+            String name = optionName(key);
+            policy = new CapturePolicy(
+                    LoggerOptions.getInt("capture." + name + ".headBytes", DEFAULT_HEAD_BYTES),
+                    LoggerOptions.getInt("capture." + name + ".tailBytes", DEFAULT_TAIL_BYTES));
+            policies.put(key, policy);
+        }
+        return policy;
+    }
+
+    /**
+     * Algorithm part of an option key: "AES/CBC/PKCS5Padding" -&gt; "AES",
+     * "HmacSHA256" -&gt; "HMACSHA256".
+     */
+    static String optionName(String algorithm) {
+        int slash = algorithm.indexOf('/');
+        return (slash >= 0 ? algorithm.substring(0, slash) : algorithm).toUpperCase(Locale.US);
+    }
+
+    public CaptureBuffer newBuffer() {
+        return new CaptureBuffer(headBytes, tailBytes);
+    }
+}
@@ -26,7 +26,6 @@
 
 package javax.crypto;
 
-import org.json.JSONObject;
 
 import java.security.spec.DSAParameterSpec;
 import java.security.spec.ECGenParameterSpec;
@@ -37,6 +36,7 @@ import java.security.spec.RSAKeyGenParameterSpec;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.*;
 
 import static java.util.Locale.ENGLISH;
@@ -55,6 +55,8 @@ import java.nio.ByteBuffer;
 import java.nio.ReadOnlyBufferException;
 import sun.security.jca.*;
 
+import android.system.Os;
+
 /**
  * This class provides the functionality of a cryptographic cipher for
  * encryption and decryption. It forms the core of the Java Cryptographic
@@ -311,15 +313,175 @@ public class Cipher {
 
 
     //add by icew4y 2019 12 13
-    private JSONObject jsoninfo = new JSONObject();
+    // fields of the current init()
+    private CryptoEvent jsoninfo = new CryptoEvent();
     private static boolean switch_state = true;
-    private String monPackageName = "";
 
+    // cipher.sessions: init() fields go into one "CipherSessionTag:" record and
+    // every doFinal record only carries its "SessionId" (tools/CipherSessionJoin
+    // merges them back); off: every doFinal record repeats the init() fields.
+    // Nested so the option is read on first monitored use, not when zygote preloads Cipher.
+    private static final class Sessions {
+        static final boolean ENABLED = LoggerOptions.getBoolean("cipher.sessions", true);
+        // the pid in the high 32 bits: every process of the package appends to the same file
+        static final long PROCESS_BITS = (long) Os.getpid() << 32;
+    }
+    private static final AtomicLong nextSessionId = new AtomicLong();
+    // id of the current init()'s session record, 0 when none was written
+    private long sessionId;
+
+    private static void priter(CryptoEvent event, Throwable stack, String packageName) {
+        LoggerMetrics.CIPHER_DO_FINAL.emitted(event);
+        MyUtil.appendEvent(MyUtil.DATA_DIR + packageName + "/Cipher", "CipherTag:", event, stack);
+    }
+
+    private static void priterSession(CryptoEvent event, Throwable stack, String packageName) {
+        LoggerMetrics.CIPHER_INIT.emitted(event);
+        MyUtil.appendEvent(MyUtil.DATA_DIR + packageName + "/Cipher", "CipherSessionTag:", event, stack);
+    }
+
+    // update() data of the current multi-part operation, emitted with its doFinal
+    private CaptureBuffer streamInput;
+    private CaptureBuffer streamOutput;
+    // set by init, see beginEvent()
+    private boolean sampleExempt;
+
+    private void captureUpdate(byte[] input, int inputOffset, int inputLen,
+                               byte[] output, int outputOffset, int outputLen) {
+        long hookStart = LoggerMetrics.start();
+        try {
+            if (ContextHolder.getMonitorDecision().monitored) {
+                ensureStream();
+                streamInput.append(input, inputOffset, inputLen);
+                streamOutput.append(output, outputOffset, outputLen);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        LoggerMetrics.CIPHER_UPDATE.stop(hookStart);
+    }
+
+    private void captureUpdate(ByteBuffer input, int inputLen, ByteBuffer output, int outputLen) {
+        long hookStart = LoggerMetrics.start();
+        try {
+            // null when the process was not monitored before the engine call
+            if (input != null) {
+                ensureStream();
+                streamInput.append(input, inputLen);
+                streamOutput.append(output, outputLen);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        LoggerMetrics.CIPHER_UPDATE.stop(hookStart);
+    }
+
+    private void ensureStream() {
+        if (streamInput == null) {
+            CapturePolicy policy = CapturePolicy.forAlgorithm(transformation);
+            streamInput = policy.newBuffer();
+            streamOutput = policy.newBuffer();
+        }
+    }
+
+    /**
+     * Copy of the input of an in-place call (input == output) as it is
+     * before the engine overwrites it, or null when the call is not in place
+     * or the process is not monitored.
+     */
+    private static byte[] inputCopy(byte[] input, int inputOffset, int inputLen, byte[] output) {
+        if (input != output) {
+            return null;
+        }
+        try {
+            if (!ContextHolder.getMonitorDecision().monitored) {
+                return null;
+            }
+            return Arrays.copyOfRange(input, inputOffset, inputOffset + inputLen);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * View of the <code>remaining()</code> bytes of <code>input</code> as
+     * they are before the engine call, or null when the process is not
+     * monitored. When the call may write over them (both buffers direct, or
+     * views of one array) they are copied first.
+     */
+    private static ByteBuffer inputSnapshot(ByteBuffer input, ByteBuffer output) {
+        try {
+            if (!ContextHolder.getMonitorDecision().monitored) {
+                return null;
+            }
+            if (CaptureBuffer.mayOverlap(input, output)) {
+                return CaptureBuffer.snapshot(input);
+            }
+            return input.duplicate();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Starts the record of the operation that is finishing: a reference to
+     * the init() session, or a copy of the init() fields when sessions are
+     * off. Returns null when EventSampler drops it (its update() data is
+     * discarded then).
+     */
+    private CryptoEvent beginEvent() {
+        EventSampler.Rule rule = EventSampler.CIPHER.ruleFor(transformation);
+        boolean exempt = sampleExempt;
+        sampleExempt = false;
+        if (!exempt && !rule.admit()) {
+            clearStream();
+            return null;
+        }
+        CryptoEvent event;
+        if (Sessions.ENABLED) {
+            event = new CryptoEvent();
+            if (sessionId != 0) {
+                event.put("SessionId", sessionId);
+            }
+        } else {
+            event = jsoninfo.copy();
+        }
+        rule.stamp(event, exempt);
+        return event;
+    }
 
-    private static synchronized void priter(String content, String packageName) {
-        //return;
-        //System.out.println(content);
-        MyUtil.appendFile("/data/data/" + packageName + "/Cipher", content + "\r\n");
+    private boolean hasStream() {
+        return streamInput != null && !(streamInput.isEmpty() && streamOutput.isEmpty());
+    }
+
+    private void clearStream() {
+        if (streamInput != null) {
+            streamInput.clear();
+            streamOutput.clear();
+        }
+    }
+
+    /**
+     * Puts data/doFinal of a finished operation: the bytes of all earlier
+     * update() calls followed by the doFinal call's own input and output,
+     * cut down to the algorithm's {@link CapturePolicy}.
+     */
+    private void putOperationData(CryptoEvent event, byte[] input, int inputOffset, int inputLen,
+                                  byte[] output, int outputOffset, int outputLen) {
+        CapturePolicy policy = CapturePolicy.forAlgorithm(transformation);
+        long limit = (long) policy.headBytes + policy.tailBytes;
+        if (!hasStream() && inputLen <= limit && outputLen <= limit) {
+            event.putBytes("data", "Base64Data", input, inputOffset, inputLen);
+            event.putBytes("doFinal", "Base64Cipher", output, outputOffset, outputLen);
+            return;
+        }
+        ensureStream();
+        streamInput.append(input, inputOffset, inputLen);
+        streamOutput.append(output, outputOffset, outputLen);
+        streamInput.drainInto(event, "data", "Base64Data");
+        streamOutput.drainInto(event, "doFinal", "Base64Cipher");
     }
     //add by icew4y 2019 12 13
 
@@ -328,154 +490,136 @@ public class Cipher {
 
     private void passThrough_InitParams(InitType initType, int opmode, Key key, SecureRandom random,
                                         AlgorithmParameterSpec spec, AlgorithmParameters params) {
+        // a new operation starts, drop update() data of an unfinished one
+        clearStream();
         if (switch_state == true) {
 
+            long hookStart = LoggerMetrics.start();
             try {
 
-                String packageName = ContextHolder.getPackageName();
-                if (!MyUtil.isWhiteList(packageName)) {
-                    if (monPackageName.equals("")) {
-                        monPackageName = MyUtil.readPackageNameFromFile();
+                MonitorDecision decision = ContextHolder.getMonitorDecision();
+                if (decision.monitored) {
+                    // fields of an earlier init() must not leak into this one's records
+                    jsoninfo.clear();
+                    sessionId = 0;
+                    // the first operation after a key setup is always logged
+                    sampleExempt = true;
+                    String modeString = "";
+                    if (this.opmode == ENCRYPT_MODE) {
+                        modeString = "ENCRYPT_MODE";
+                    } else if (this.opmode == DECRYPT_MODE) {
+                        modeString = "DECRYPT_MODE";
+                    } else if (this.opmode == UNWRAP_MODE) {
+                        modeString = "UNWRAP_MODE";
+                    } else if (this.opmode == WRAP_MODE) {
+                        modeString = "WRAP_MODE";
+                    } else {
+                        modeString = "UNKNOW_MODE";
                     }
-                    if (!monPackageName.equals("")) {
-                       if (monPackageName.contains(packageName)) {
-                            String modeString = "";
-                            if (this.opmode == ENCRYPT_MODE) {
-                                modeString = "ENCRYPT_MODE";
-                            } else if (this.opmode == DECRYPT_MODE) {
-                                modeString = "DECRYPT_MODE";
-                            } else if (this.opmode == UNWRAP_MODE) {
-                                modeString = "UNWRAP_MODE";
-                            } else if (this.opmode == WRAP_MODE) {
-                                modeString = "WRAP_MODE";
-                            } else {
-                                modeString = "UNKNOW_MODE";
-                            }
-
-                            jsoninfo.put("opmode", modeString);
 
+                    jsoninfo.put("opmode", modeString);
 
-                            if (key != null) {
 
-                                String algorithm = key.getAlgorithm();
-                                byte[] keyBytes = key.getEncoded();
-                                if (keyBytes != null) {
-                                    jsoninfo.put("key", byteArrayToString(keyBytes));
-                                    jsoninfo.put("Key(Base64)", AndroidBase64.encodeToString(keyBytes, AndroidBase64.NO_WRAP));
+                    if (key != null) {
 
-                                } else {
-                                    jsoninfo.put("key", "");
-                                    jsoninfo.put("Key(Base64)", "");
+                        String algorithm = key.getAlgorithm();
+                        byte[] keyBytes = key.getEncoded();
+                        if (keyBytes != null) {
+                            jsoninfo.adoptBytes("key", "Key(Base64)", keyBytes);
 
-                                }
-                                jsoninfo.put("algorithm", algorithm);
+                        } else {
+                            jsoninfo.put("key", "");
+                            jsoninfo.put("Key(Base64)", "");
 
-
-                                if (key instanceof PBEKey) {
-                                    PBEKey pbeKey = (PBEKey) key;
-                                    jsoninfo.put("IterationCount", pbeKey.getIterationCount());
-                                    jsoninfo.put("Password", new String(pbeKey.getPassword()));
-                                    if (pbeKey.getSalt() != null && pbeKey.getSalt().length > 0) {
-                                        jsoninfo.put("Salt(Base64)", AndroidBase64.encodeToString(pbeKey.getSalt(), AndroidBase64.NO_WRAP));
-                                    } else {
-                                        jsoninfo.put("Salt(Base64)", "");
-                                    }
-                                } else if (key instanceof PublicKey) {
-                                    PublicKey publicKey = (PublicKey) key;
-                                    jsoninfo.put("PublicKey", AndroidBase64.encodeToString(publicKey.getEncoded(), AndroidBase64.NO_WRAP));
-                                } else if (key instanceof PrivateKey) {
-                                    PrivateKey privateKey = (PrivateKey) key;
-                                    jsoninfo.put("PrivateKey", AndroidBase64.encodeToString(privateKey.getEncoded(), AndroidBase64.NO_WRAP));
-                                } else {
-                                }
+                        }
+                        jsoninfo.put("algorithm", algorithm);
 
 
+                        if (key instanceof PBEKey) {
+                            PBEKey pbeKey = (PBEKey) key;
+                            jsoninfo.put("IterationCount", pbeKey.getIterationCount());
+                            jsoninfo.put("Password", new String(pbeKey.getPassword()));
+                            if (pbeKey.getSalt() != null && pbeKey.getSalt().length > 0) {
+                                jsoninfo.adoptBytes(null, "Salt(Base64)", pbeKey.getSalt());
                             } else {
-
+                                jsoninfo.put("Salt(Base64)", "");
                             }
+                        } else if (key instanceof PublicKey) {
+                            PublicKey publicKey = (PublicKey) key;
+                            jsoninfo.adoptBytes(null, "PublicKey", publicKey.getEncoded());
+                        } else if (key instanceof PrivateKey) {
+                            PrivateKey privateKey = (PrivateKey) key;
+                            jsoninfo.adoptBytes(null, "PrivateKey", privateKey.getEncoded());
+                        } else {
+                        }
 
-                            if (random != null) {
-                                jsoninfo.put("SecureRandom", random.getAlgorithm());
-                            }
 
-                            if (spec != null) {
-
-                                if (spec instanceof IvParameterSpec) {
-                                    //IvParameterSpec ivSpec = new IvParameterSpec(iv);
-                                    IvParameterSpec ivParameterSpec = (IvParameterSpec) spec;
-                                    byte[] iv = ivParameterSpec.getIV();
-
-                                    jsoninfo.put("iv", byteArrayToString(iv));
-                                    jsoninfo.put("Iv(Base64)", AndroidBase64.encodeToString(iv, AndroidBase64.NO_WRAP));
-                                } else if (spec instanceof DSAParameterSpec) {
-                                    //DSAParameterSpec dsaParameterSpec = (DSAParameterSpec) spec;
-                                    jsoninfo.put("AlgorithmParameterSpec", "DSAParameterSpec unimplement！");
-                                } else if (spec instanceof ECGenParameterSpec) {
-                                    ECGenParameterSpec ecGenParameterSpec = (ECGenParameterSpec) spec;
-                                    jsoninfo.put("name", ecGenParameterSpec.getName());
-                                } else if (spec instanceof ECParameterSpec) {
-                                    //ECParameterSpec ecParameterSpec = (ECParameterSpec) spec;
-                                    jsoninfo.put("AlgorithmParameterSpec", "ECParameterSpec unimplement！");
-                                } else if (spec instanceof MGF1ParameterSpec) {
-                                    MGF1ParameterSpec mgf1ParameterSpec = (MGF1ParameterSpec) spec;
-                                    jsoninfo.put("DigestAlgorithm", mgf1ParameterSpec.getDigestAlgorithm());
-                                } else if (spec instanceof PSSParameterSpec) {
-                                    PSSParameterSpec pssParameterSpec = (PSSParameterSpec) spec;
-                                    jsoninfo.put("AlgorithmParameterSpec", "PSSParameterSpec unimplement！");
-                                } else if (spec instanceof RSAKeyGenParameterSpec) {
-                                    RSAKeyGenParameterSpec rsaKeyGenParameterSpec = (RSAKeyGenParameterSpec) spec;
-                                    jsoninfo.put("AlgorithmParameterSpec", "RSAKeyGenParameterSpec unimplement！");
-                                } else if (spec instanceof PBEParameterSpec) {
-                                    PBEParameterSpec pbeParameterSpec = (PBEParameterSpec) spec;
-                                    jsoninfo.put("IterationCount", pbeParameterSpec.getIterationCount());
-                                    jsoninfo.put("Salt(Base64)", AndroidBase64.encode(pbeParameterSpec.getSalt(), AndroidBase64.NO_WRAP));
-                                } else {
-                                    jsoninfo.put("AlgorithmParameterSpec", "unknow AlgorithmParameterSpec！");
-                                }
-                            }
+                    } else {
 
-                            if (params != null) {
-                                jsoninfo.put("params", params.getAlgorithm() + "," + byteArrayToString(params.getEncoded()));
-                            }
+                    }
+
+                    if (random != null) {
+                        jsoninfo.put("SecureRandom", random.getAlgorithm());
+                    }
+
+                    if (spec != null) {
+
+                        if (spec instanceof IvParameterSpec) {
+                            //IvParameterSpec ivSpec = new IvParameterSpec(iv);
+                            IvParameterSpec ivParameterSpec = (IvParameterSpec) spec;
+                            byte[] iv = ivParameterSpec.getIV();
+
+                            jsoninfo.adoptBytes("iv", "Iv(Base64)", iv);
+                        } else if (spec instanceof DSAParameterSpec) {
+                            //DSAParameterSpec dsaParameterSpec = (DSAParameterSpec) spec;
+                            jsoninfo.put("AlgorithmParameterSpec", "DSAParameterSpec unimplement！");
+                        } else if (spec instanceof ECGenParameterSpec) {
+                            ECGenParameterSpec ecGenParameterSpec = (ECGenParameterSpec) spec;
+                            jsoninfo.put("name", ecGenParameterSpec.getName());
+                        } else if (spec instanceof ECParameterSpec) {
+                            //ECParameterSpec ecParameterSpec = (ECParameterSpec) spec;
+                            jsoninfo.put("AlgorithmParameterSpec", "ECParameterSpec unimplement！");
+                        } else if (spec instanceof MGF1ParameterSpec) {
+                            MGF1ParameterSpec mgf1ParameterSpec = (MGF1ParameterSpec) spec;
+                            jsoninfo.put("DigestAlgorithm", mgf1ParameterSpec.getDigestAlgorithm());
+                        } else if (spec instanceof PSSParameterSpec) {
+                            PSSParameterSpec pssParameterSpec = (PSSParameterSpec) spec;
+                            jsoninfo.put("AlgorithmParameterSpec", "PSSParameterSpec unimplement！");
+                        } else if (spec instanceof RSAKeyGenParameterSpec) {
+                            RSAKeyGenParameterSpec rsaKeyGenParameterSpec = (RSAKeyGenParameterSpec) spec;
+                            jsoninfo.put("AlgorithmParameterSpec", "RSAKeyGenParameterSpec unimplement！");
+                        } else if (spec instanceof PBEParameterSpec) {
+                            PBEParameterSpec pbeParameterSpec = (PBEParameterSpec) spec;
+                            jsoninfo.put("IterationCount", pbeParameterSpec.getIterationCount());
+                            jsoninfo.adoptBytes(null, "Salt(Base64)", pbeParameterSpec.getSalt());
+                        } else {
+                            jsoninfo.put("AlgorithmParameterSpec", "unknow AlgorithmParameterSpec！");
                         }
                     }
+
+                    if (params != null) {
+                        jsoninfo.put("params", params.getAlgorithm() + "," + byteArrayToString(params.getEncoded()));
+                    }
+
+                    if (Sessions.ENABLED) {
+                        sessionId = Sessions.PROCESS_BITS | nextSessionId.incrementAndGet();
+                        CryptoEvent session = jsoninfo.copy();
+                        session.put("SessionId", sessionId);
+                        session.put("transformation", this.transformation == null ? "" : this.transformation);
+                        priterSession(session, StackCapture.capture(), decision.packageName);
+                    }
                 }
 
             } catch (Exception e) {
                 e.printStackTrace();
             }
+            LoggerMetrics.CIPHER_INIT.stop(hookStart);
         }
 
     }
 
     public static String byteArrayToString(byte[] input) {
-        if(input==null)
-            return "";
-        String out = new String(input);
-        int tmp = 0;
-        for (int i = 0; i < out.length(); i++) {
-            int c = out.charAt(i);
-
-            if (c >= 32 && c < 127) {
-                tmp++;
-            }
-        }
-
-        if (tmp > (out.length() * 0.60)) {
-            StringBuilder sb = new StringBuilder();
-            for (byte b : input) {
-                if (b >= 32 && b < 127)
-                    sb.append(String.format("%c", b));
-                else
-                    sb.append('.');
-            }
-            out = sb.toString();
-
-        } else {
-            out = AndroidBase64.encodeToString(input, AndroidBase64.NO_WRAP);
-        }
-
-        return out;
+        return PayloadEncoder.byteArrayToString(input);
     }
 
     //add by icew4y 2019 12 13
@@ -1564,7 +1708,10 @@ public class Cipher {
         if (input.length == 0) {
             return null;
         }
-        return spi.engineUpdate(input, 0, input.length);
+        //add by icew4y: streaming capture
+        byte[] result = spi.engineUpdate(input, 0, input.length);
+        captureUpdate(input, 0, input.length, result, 0, result == null ? 0 : result.length);
+        return result;
     }
 
     /**
@@ -1604,7 +1751,10 @@ public class Cipher {
         if (inputLen == 0) {
             return null;
         }
-        return spi.engineUpdate(input, inputOffset, inputLen);
+        //add by icew4y: streaming capture
+        byte[] result = spi.engineUpdate(input, inputOffset, inputLen);
+        captureUpdate(input, inputOffset, inputLen, result, 0, result == null ? 0 : result.length);
+        return result;
     }
 
     /**
@@ -1658,8 +1808,17 @@ public class Cipher {
         if (inputLen == 0) {
             return 0;
         }
-        return spi.engineUpdate(input, inputOffset, inputLen,
+        //add by icew4y: streaming capture
+        // input and output may be the same array, keep the input first
+        byte[] inputCopy = inputCopy(input, inputOffset, inputLen, output);
+        int ret = spi.engineUpdate(input, inputOffset, inputLen,
                                       output, 0);
+        if (inputCopy != null) {
+            captureUpdate(inputCopy, 0, inputLen, output, 0, ret);
+        } else {
+            captureUpdate(input, inputOffset, inputLen, output, 0, ret);
+        }
+        return ret;
     }
 
     /**
@@ -1717,8 +1876,17 @@ public class Cipher {
         if (inputLen == 0) {
             return 0;
         }
-        return spi.engineUpdate(input, inputOffset, inputLen,
+        //add by icew4y: streaming capture
+        // input and output may be the same array, keep the input first
+        byte[] inputCopy = inputCopy(input, inputOffset, inputLen, output);
+        int ret = spi.engineUpdate(input, inputOffset, inputLen,
                                       output, outputOffset);
+        if (inputCopy != null) {
+            captureUpdate(inputCopy, 0, inputLen, output, outputOffset, ret);
+        } else {
+            captureUpdate(input, inputOffset, inputLen, output, outputOffset, ret);
+        }
+        return ret;
     }
 
     /**
@@ -1775,7 +1943,13 @@ public class Cipher {
         }
 
         updateProviderIfNeeded();
-        return spi.engineUpdate(input, output);
+        //add by icew4y: streaming capture
+        int inputPos = input.position();
+        ByteBuffer inputStart = inputSnapshot(input, output);
+        ByteBuffer outputStart = inputStart == null ? null : output.duplicate();
+        int ret = spi.engineUpdate(input, output);
+        captureUpdate(inputStart, input.position() - inputPos, outputStart, ret);
+        return ret;
     }
 
     /**
@@ -1825,31 +1999,25 @@ public class Cipher {
         byte[] resultData = spi.engineDoFinal(null, 0, 0);
 
         //if (switch_state == true ) {
+            long hookStart = LoggerMetrics.start();
             try {
-                String packageName = ContextHolder.getPackageName();
-                if (!MyUtil.isWhiteList(packageName)) {
-                    if (monPackageName.equals("")) {
-                        monPackageName = MyUtil.readPackageNameFromFile();
+                MonitorDecision decision = ContextHolder.getMonitorDecision();
+                CryptoEvent event = decision.monitored ? beginEvent() : null;
+                if (event != null) {
+                    String packageName = decision.packageName;
+                    if (this.spiAndProviderUpdater != null) {
+                        event.put("provider", this.provider.getName());
+                    }else{
+                        event.put("provider", "");
                     }
-                    if (!monPackageName.equals("")) {
-                       if (monPackageName.contains(packageName)) {
-                            if (this.spiAndProviderUpdater != null) {
-                                jsoninfo.put("provider", this.provider.getName());
-                            }else{
-                                jsoninfo.put("provider", "");
-                            }
-                            jsoninfo.put("transformation", this.transformation == null ? "" : this.transformation);
-                            jsoninfo.put("data", "unknow!");
-                            jsoninfo.put("Base64Data", "unknow!");
-                            jsoninfo.put("doFinal", byteArrayToString(resultData));
-                            jsoninfo.put("Base64Cipher", AndroidBase64.encodeToString(resultData, AndroidBase64.NO_WRAP));
-                            jsoninfo.put("StackTrace", AndroidBase64.encodeToString(MyUtil.getCurrentStackTrack(Thread.currentThread().getStackTrace()).getBytes(), AndroidBase64.NO_WRAP));
-                            priter("CipherTag:" + jsoninfo.toString(), packageName);
-                        }else{
-                            priter("CipherTag:current package name base64:" + AndroidBase64.encodeToString(packageName.getBytes(), AndroidBase64.NO_WRAP)  
-                                + ",not the target:" + AndroidBase64.encodeToString(monPackageName.getBytes(), AndroidBase64.NO_WRAP), packageName);
-                        }
+                    event.put("transformation", this.transformation == null ? "" : this.transformation);
+                    boolean streamed = hasStream();
+                    putOperationData(event, null, 0, 0, resultData, 0, resultData == null ? 0 : resultData.length);
+                    if (!streamed) {
+                        event.put("data", "unknow!");
+                        event.put("Base64Data", "unknow!");
                     }
+                    priter(event, StackCapture.capture(), packageName);
                 }
 
 
@@ -1859,6 +2027,7 @@ public class Cipher {
             } catch (Exception e) {
                 e.printStackTrace();
             }
+            LoggerMetrics.CIPHER_DO_FINAL.stop(hookStart);
         //}
 
 
@@ -1927,7 +2096,34 @@ public class Cipher {
         }
 
         updateProviderIfNeeded();
-        return spi.engineDoFinal(null, 0, 0, output, outputOffset);
+        //add by icew4y: finishes a streamed operation (CipherInputStream/CipherOutputStream)
+        int ret = spi.engineDoFinal(null, 0, 0, output, outputOffset);
+        long hookStart = LoggerMetrics.start();
+        try {
+            MonitorDecision decision = ContextHolder.getMonitorDecision();
+            CryptoEvent event = decision.monitored ? beginEvent() : null;
+            if (event != null) {
+                String packageName = decision.packageName;
+                if (this.provider != null) {
+                    event.put("provider", this.provider.getName());
+                } else {
+                    event.put("provider", "");
+                }
+                event.put("transformation", this.transformation == null ? "" : this.transformation);
+                boolean streamed = hasStream();
+                putOperationData(event, null, 0, 0, output, outputOffset, ret);
+                if (!streamed) {
+                    event.put("data", "unknow!");
+                    event.put("Base64Data", "unknow!");
+                }
+
+                priter(event, StackCapture.capture(), packageName);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        LoggerMetrics.CIPHER_DO_FINAL.stop(hookStart);
+        return ret;
     }
 
     /**
@@ -1986,38 +2182,28 @@ public class Cipher {
         byte[] resultData = spi.engineDoFinal(input, 0, input.length);
 
         //if (switch_state == true && !MyUtil.check_oom(input)) {
+            long hookStart = LoggerMetrics.start();
             try {
-                String packageName = ContextHolder.getPackageName();
-                if (!MyUtil.isWhiteList(packageName)) {
-                    if (monPackageName.equals("")) {
-                        monPackageName = MyUtil.readPackageNameFromFile();
-                    }
-                    if (!monPackageName.equals("")) {
-                       if (monPackageName.contains(packageName)) {
-                            if (this.provider != null) {
-                                jsoninfo.put("provider", this.provider.getName());
-                            }else{
-                                jsoninfo.put("provider", "");
-                            }
-                            jsoninfo.put("transformation", this.transformation == null ? "" : this.transformation);
-
-                            jsoninfo.put("data", byteArrayToString(input));
-                            jsoninfo.put("Base64Data", AndroidBase64.encodeToString(input, AndroidBase64.NO_WRAP));
-                            jsoninfo.put("doFinal", byteArrayToString(resultData));
-                            jsoninfo.put("Base64Cipher", AndroidBase64.encodeToString(resultData, AndroidBase64.NO_WRAP));
-                            jsoninfo.put("StackTrace", AndroidBase64.encodeToString(MyUtil.getCurrentStackTrack(Thread.currentThread().getStackTrace()).getBytes(), AndroidBase64.NO_WRAP));
-
-                            priter("CipherTag:" + jsoninfo.toString(), packageName);
-                        }else{
-                            priter("CipherTag:current package name base64:" + AndroidBase64.encodeToString(packageName.getBytes(), AndroidBase64.NO_WRAP)  
-                                + ",not the target:" + AndroidBase64.encodeToString(monPackageName.getBytes(), AndroidBase64.NO_WRAP), packageName);
-                        }
+                MonitorDecision decision = ContextHolder.getMonitorDecision();
+                CryptoEvent event = decision.monitored ? beginEvent() : null;
+                if (event != null) {
+                    String packageName = decision.packageName;
+                    if (this.provider != null) {
+                        event.put("provider", this.provider.getName());
+                    }else{
+                        event.put("provider", "");
                     }
+                    event.put("transformation", this.transformation == null ? "" : this.transformation);
+
+                    putOperationData(event, input, 0, input.length, resultData, 0, resultData == null ? 0 : resultData.length);
+
+                    priter(event, StackCapture.capture(), packageName);
                 }
 
             } catch (Exception e) {
                 e.printStackTrace();
             }
+            LoggerMetrics.CIPHER_DO_FINAL.stop(hookStart);
         //}
 
         return resultData;
@@ -2084,42 +2270,29 @@ public class Cipher {
 
         byte[] resultData = spi.engineDoFinal(input, inputOffset, inputLen);
         //if (switch_state == true  && !MyUtil.check_oom(input)) {
+            long hookStart = LoggerMetrics.start();
             try {
-                String packageName = ContextHolder.getPackageName();
-                if (!MyUtil.isWhiteList(packageName)) {
-                    if (monPackageName.equals("")) {
-                        monPackageName = MyUtil.readPackageNameFromFile();
+                MonitorDecision decision = ContextHolder.getMonitorDecision();
+                CryptoEvent event = decision.monitored ? beginEvent() : null;
+                if (event != null) {
+                    String packageName = decision.packageName;
+                    if (this.provider != null) {
+                        event.put("provider", this.provider.getName());
+                    } else {
+                        event.put("provider", "");
                     }
-                    if (!monPackageName.equals("")) {
-                       if (monPackageName.contains(packageName)) {
-                            if (this.provider != null) {
-                                jsoninfo.put("provider", this.provider.getName());
-                            } else {
-                                jsoninfo.put("provider", "");
-                            }
-                            jsoninfo.put("transformation", this.transformation == null ? "" : this.transformation);
-
-                            byte[] inputdata = new byte[inputLen];
-                            System.arraycopy(input, inputOffset, inputdata, 0, inputLen);
+                    event.put("transformation", this.transformation == null ? "" : this.transformation);
 
-                            jsoninfo.put("data", byteArrayToString(inputdata));
-                            jsoninfo.put("Base64Data", AndroidBase64.encodeToString(inputdata, AndroidBase64.NO_WRAP));
-                            jsoninfo.put("doFinal", byteArrayToString(resultData));
-                            jsoninfo.put("Base64Cipher", AndroidBase64.encodeToString(resultData, AndroidBase64.NO_WRAP));
-                            jsoninfo.put("StackTrace", AndroidBase64.encodeToString(MyUtil.getCurrentStackTrack(Thread.currentThread().getStackTrace()).getBytes(), AndroidBase64.NO_WRAP));
+                    putOperationData(event, input, inputOffset, inputLen, resultData, 0, resultData == null ? 0 : resultData.length);
 
-                            priter("CipherTag:" + jsoninfo.toString(), packageName);
-                        }else{
-                            priter("CipherTag:current package name base64:" + AndroidBase64.encodeToString(packageName.getBytes(), AndroidBase64.NO_WRAP)  
-                                + ",not the target:" + AndroidBase64.encodeToString(monPackageName.getBytes(), AndroidBase64.NO_WRAP), packageName);
-                        }
-                    }
+                    priter(event, StackCapture.capture(), packageName);
                 }
 
 
             } catch (Exception e) {
                 e.printStackTrace();
             }
+            LoggerMetrics.CIPHER_DO_FINAL.stop(hookStart);
         //}
 
 
@@ -2200,8 +2373,37 @@ public class Cipher {
         }
 
         updateProviderIfNeeded();
-        return spi.engineDoFinal(input, inputOffset, inputLen,
+        //add by icew4y
+        // input and output may be the same array, keep the input first
+        byte[] inputCopy = inputCopy(input, inputOffset, inputLen, output);
+        int ret = spi.engineDoFinal(input, inputOffset, inputLen,
                                        output, 0);
+        long hookStart = LoggerMetrics.start();
+        try {
+            MonitorDecision decision = ContextHolder.getMonitorDecision();
+            CryptoEvent event = decision.monitored ? beginEvent() : null;
+            if (event != null) {
+                String packageName = decision.packageName;
+                if (this.provider != null) {
+                    event.put("provider", this.provider.getName());
+                } else {
+                    event.put("provider", "");
+                }
+                event.put("transformation", this.transformation == null ? "" : this.transformation);
+
+                if (inputCopy != null) {
+                    putOperationData(event, inputCopy, 0, inputLen, output, 0, ret);
+                } else {
+                    putOperationData(event, input, inputOffset, inputLen, output, 0, ret);
+                }
+
+                priter(event, StackCapture.capture(), packageName);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        LoggerMetrics.CIPHER_DO_FINAL.stop(hookStart);
+        return ret;
     }
 
     /**
@@ -2283,46 +2485,39 @@ public class Cipher {
 //add by icew4y 2019 12 13
 
 
+        // input and output may be the same array, keep the input first
+        byte[] inputCopy = inputCopy(input, inputOffset, inputLen, output);
         int ret = spi.engineDoFinal(input, inputOffset, inputLen, output,
                 outputOffset);
 
         if (switch_state == true) {
+            long hookStart = LoggerMetrics.start();
             try {
-                String packageName = ContextHolder.getPackageName();
-                if (!MyUtil.isWhiteList(packageName)) {
-                    if (monPackageName.equals("")) {
-                        monPackageName = MyUtil.readPackageNameFromFile();
+                MonitorDecision decision = ContextHolder.getMonitorDecision();
+                CryptoEvent event = decision.monitored ? beginEvent() : null;
+                if (event != null) {
+                    String packageName = decision.packageName;
+                    if (this.provider != null) {
+                        event.put("provider", this.provider.getName());
+                    } else {
+                        event.put("provider", "");
                     }
-                    if (!monPackageName.equals("")) {
-                       if (monPackageName.contains(packageName)) {
-                            if (this.provider != null) {
-                                jsoninfo.put("provider", this.provider.getName());
-                            } else {
-                                jsoninfo.put("provider", "");
-                            }
-                            jsoninfo.put("transformation", this.transformation == null ? "" : this.transformation);
-
-                            byte[] inputdata = new byte[inputLen];
-                            System.arraycopy(input, inputOffset, inputdata, 0, inputLen);
-
-                            int outlen = output.length - outputOffset;
-                            byte[] resultData = new byte[outlen];
-                            System.arraycopy(output, outputOffset, resultData, 0, outlen);
+                    event.put("transformation", this.transformation == null ? "" : this.transformation);
 
-                            jsoninfo.put("data", byteArrayToString(inputdata));
-                            jsoninfo.put("Base64Data", AndroidBase64.encodeToString(inputdata, AndroidBase64.NO_WRAP));
-                            jsoninfo.put("doFinal", byteArrayToString(resultData));
-                            jsoninfo.put("Base64Cipher", AndroidBase64.encodeToString(resultData, AndroidBase64.NO_WRAP));
-                            jsoninfo.put("StackTrace", AndroidBase64.encodeToString(MyUtil.getCurrentStackTrack(Thread.currentThread().getStackTrace()).getBytes(), AndroidBase64.NO_WRAP));
-
-                            priter("CipherTag:" + jsoninfo.toString(), packageName);
-                        }
+                    // only the ret bytes written by this call are output
+                    if (inputCopy != null) {
+                        putOperationData(event, inputCopy, 0, inputLen, output, outputOffset, ret);
+                    } else {
+                        putOperationData(event, input, inputOffset, inputLen, output, outputOffset, ret);
                     }
+
+                    priter(event, StackCapture.capture(), packageName);
                 }
 
             } catch (Exception e) {
                 e.printStackTrace();
             }
+            LoggerMetrics.CIPHER_DO_FINAL.stop(hookStart);
         }
         //System.out.println("MyTag: doFinal[" + transformationName + "," + providerName + "] -> " + sb.toString());
 
@@ -2415,39 +2610,38 @@ public class Cipher {
         //add by icew4y 2019 12 13
 
 
+        int inputPos = input.position();
+        ByteBuffer inputStart = inputSnapshot(input, output);
+        ByteBuffer outputStart = inputStart == null ? null : output.duplicate();
         int ret = spi.engineDoFinal(input, output);
         if (switch_state == true) {
+            long hookStart = LoggerMetrics.start();
             try {
-                String packageName = ContextHolder.getPackageName();
-                if (!MyUtil.isWhiteList(packageName)) {
-                    if (monPackageName.equals("")) {
-                        monPackageName = MyUtil.readPackageNameFromFile();
+                MonitorDecision decision = ContextHolder.getMonitorDecision();
+                CryptoEvent event = decision.monitored ? beginEvent() : null;
+                if (event != null) {
+                    String packageName = decision.packageName;
+                    if (this.provider != null) {
+                        event.put("provider", this.provider.getName());
+                    } else {
+                        event.put("provider", "");
                     }
-                    if (!monPackageName.equals("")) {
-                       if (monPackageName.contains(packageName)) {
-                            if (this.provider != null) {
-                                jsoninfo.put("provider", this.provider.getName());
-                            } else {
-                                jsoninfo.put("provider", "");
-                            }
-                            jsoninfo.put("transformation", this.transformation == null ? "" : this.transformation);
-
-                            jsoninfo.put("data", byteArrayToString(input.array()));
-                            jsoninfo.put("Base64Data", AndroidBase64.encodeToString(input.array(), AndroidBase64.NO_WRAP));
-                            jsoninfo.put("doFinal", byteArrayToString(output.array()));
-                            jsoninfo.put("Base64Cipher", AndroidBase64.encodeToString(output.array(), AndroidBase64.NO_WRAP));
-                            jsoninfo.put("StackTrace", AndroidBase64.encodeToString(MyUtil.getCurrentStackTrack(Thread.currentThread().getStackTrace()).getBytes(), AndroidBase64.NO_WRAP));
+                    event.put("transformation", this.transformation == null ? "" : this.transformation);
 
+                    ensureStream();
+                    streamInput.append(inputStart, input.position() - inputPos);
+                    streamOutput.append(outputStart, ret);
+                    streamInput.drainInto(event, "data", "Base64Data");
+                    streamOutput.drainInto(event, "doFinal", "Base64Cipher");
 
-                            priter("CipherTag:" + jsoninfo.toString(), packageName);
-                        }
-                    }
 
+                    priter(event, StackCapture.capture(), packageName);
                 }
 
             } catch (Exception e) {
                 e.printStackTrace();
             }
+            LoggerMetrics.CIPHER_DO_FINAL.stop(hookStart);
         }
         //System.out.println("MyTag: doFinal[" + transformationName + "," + providerName + "] -> " + sb.toString());
 
@@ -2,6 +2,7 @@ package javax.crypto;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
@@ -18,6 +19,9 @@ public class ContextHolder {
     static Object ApplicationContext;
     static Logger logger = Logger.getLogger("fishso");
 
+    private ContextHolder() {
+    }
+
     /**
      * 初始化context，如果由于不同机型导致反射获取context失败可以在Application调用此方法
      * @param context
@@ -66,13 +70,79 @@ public class ContextHolder {
         return app;
     }
 
+    private static volatile MonitorDecision monitorDecision;
+    // last published decision, kept across invalidations for change logging
+    private static MonitorDecision lastDecision;
+    private static Method currentPackageNameMethod;
+
+    /**
+     * 当前进程是否需要监控，包名只解析一次，monitor_package 变化后由 MonitorConfig 的刷新线程置空重新计算
+     * @return
+     */
+    public static MonitorDecision getMonitorDecision() {
+        MonitorDecision decision = monitorDecision;
+        if (decision != null) {
+            return decision;
+        }
+        return resolveMonitorDecision();
+    }
+
+    /**
+     * monitor_package 重新加载后调用，白名单进程的结果不会变化
+     */
+    static synchronized void onConfigChanged() {
+        MonitorDecision decision = monitorDecision;
+        if (decision != null && !decision.whitelisted) {
+            monitorDecision = null;
+        }
+    }
+
+    private static synchronized MonitorDecision resolveMonitorDecision() {
+        MonitorDecision decision = monitorDecision;
+        if (decision != null) {
+            return decision;
+        }
+        MonitorDecision last = lastDecision;
+        String packageName;
+        if (last != null) {
+            packageName = last.packageName;
+        } else {
+            packageName = getPackageName();
+            if (packageName.isEmpty()) {
+                return MonitorDecision.UNRESOLVED;
+            }
+        }
+        MonitorConfig.Snapshot config = MonitorConfig.current();
+        boolean whitelisted = last != null ? last.whitelisted : MyUtil.isWhiteList(packageName);
+        boolean monitored = !whitelisted && config.contains(packageName);
+        if (!whitelisted && (last == null || last.monitored != monitored)) {
+            logInfo("current package name:" + packageName + (monitored ? ",is the target" : ",not the target"));
+        }
+        if (monitored) {
+            // options are read on first monitored use, never in zygote
+            LoggerMetrics.configure();
+        }
+        decision = new MonitorDecision(packageName, monitored, whitelisted);
+        lastDecision = decision;
+        monitorDecision = decision;
+        if (!whitelisted) {
+            MonitorConfig.startRefresher();
+        }
+        return decision;
+    }
+
     public static String getPackageName() {
         String packageName = "";
         try {
-            String curPkgName = (String) Class.forName("android.app.ActivityThread")
-                    .getMethod("currentPackageName").invoke(null);
-
-            packageName = curPkgName;
+            Method method = currentPackageNameMethod;
+            if (method == null) {
+                method = Class.forName("android.app.ActivityThread").getMethod("currentPackageName");
+                currentPackageNameMethod = method;
+            }
+            String curPkgName = (String) method.invoke(null);
+            if (curPkgName != null) {
+                packageName = curPkgName;
+            }
             /**** 
             String curOpName = (String) Class.forName("android.app.ActivityThread")
                     .getMethod("currentOpPackageName").invoke(null);
@@ -95,6 +165,14 @@ public class ContextHolder {
         return packageName;
     }
 
+    /**
+     * 日志级别关闭时调用方可以跳过拼接消息
+     * @return
+     */
+    public static boolean isInfoLoggable(){
+        return logger.isLoggable(Level.INFO);
+    }
+
     public static void logInfo(String msg){
         logger.info(msg);
     }
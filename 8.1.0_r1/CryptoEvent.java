@@ -0,0 +1,333 @@
+package javax.crypto;
+
+import java.util.Arrays;
+
+/**
+ * Fields of one Cipher/Mac/MessageDigest log record, kept as raw values.
+ *
+ * Hooks only fill it in; the text or binary form is produced later on the
+ * writer thread. Byte payloads are stored once and rendered as the
+ * printable/Base64 pair (e.g. "data" and "Base64Data") or as hex only when
+ * the record is written. Fields keep insertion order, and putting an
+ * existing name replaces the value in place, like JSONObject did. The JSON
+ * form is streamed by {@link JsonWriter}.
+ */
+public final class CryptoEvent {
+    static final byte TYPE_STRING = 1;
+    static final byte TYPE_LONG = 2;
+    // byteArrayToString under name, Base64 under base64Name (either may be null)
+    static final byte TYPE_BYTES = 3;
+    static final byte TYPE_HEX = 4;
+
+    int count;
+    byte[] types = new byte[16];
+    String[] names = new String[16];
+    String[] base64Names = new String[16];
+    String[] strings = new String[16];
+    long[] longs = new long[16];
+    byte[][] bytes = new byte[16][];
+    // set when the writer still has to apply the rule's firstPerSite limit
+    EventSampler.Rule sampleRule;
+
+    public CryptoEvent() {
+    }
+
+    public void put(String name, String value) {
+        int i = slot(name, null);
+        types[i] = TYPE_STRING;
+        strings[i] = value == null ? "" : value;
+        bytes[i] = null;
+    }
+
+    public void put(String name, long value) {
+        int i = slot(name, null);
+        types[i] = TYPE_LONG;
+        longs[i] = value;
+        strings[i] = null;
+        bytes[i] = null;
+    }
+
+    /**
+     * Copies <code>len</code> bytes of <code>b</code>; written as
+     * byteArrayToString under <code>name</code> and Base64 under
+     * <code>base64Name</code>. Pass null for a name to skip that form.
+     */
+    public void putBytes(String name, String base64Name, byte[] b, int off, int len) {
+        adoptBytes(name, base64Name, b == null ? null : Arrays.copyOfRange(b, off, off + len));
+    }
+
+    public void putBytes(String name, String base64Name, byte[] b) {
+        adoptBytes(name, base64Name, b == null ? null : b.clone());
+    }
+
+    /**
+     * Like {@link #putBytes(String, String, byte[])} but keeps
+     * <code>b</code> itself; the caller must not touch it afterwards.
+     */
+    public void adoptBytes(String name, String base64Name, byte[] b) {
+        int i = slot(name, base64Name);
+        types[i] = TYPE_BYTES;
+        bytes[i] = b == null ? new byte[0] : b;
+        strings[i] = null;
+    }
+
+    /**
+     * Copies <code>b</code>; written as a lower case hex string.
+     */
+    public void putHex(String name, byte[] b, int off, int len) {
+        int i = slot(name, null);
+        types[i] = TYPE_HEX;
+        bytes[i] = b == null ? new byte[0] : Arrays.copyOfRange(b, off, off + len);
+        strings[i] = null;
+    }
+
+    public void putHex(String name, byte[] b) {
+        putHex(name, b, 0, b == null ? 0 : b.length);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Value of the long field <code>name</code>, or <code>defaultValue</code>.
+     */
+    long getLong(String name, long defaultValue) {
+        for (int i = 0; i < count; i++) {
+            if (types[i] == TYPE_LONG && name.equals(names[i])) {
+                return longs[i];
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Total length of the byte payloads.
+     */
+    long payloadBytes() {
+        long n = 0;
+        for (int i = 0; i < count; i++) {
+            if (bytes[i] != null) {
+                n += bytes[i].length;
+            }
+        }
+        return n;
+    }
+
+    public void remove(String name) {
+        for (int i = 0; i < count; i++) {
+            if (name.equals(names[i]) || name.equals(base64Names[i])) {
+                int tail = count - i - 1;
+                System.arraycopy(types, i + 1, types, i, tail);
+                System.arraycopy(names, i + 1, names, i, tail);
+                System.arraycopy(base64Names, i + 1, base64Names, i, tail);
+                System.arraycopy(strings, i + 1, strings, i, tail);
+                System.arraycopy(longs, i + 1, longs, i, tail);
+                System.arraycopy(bytes, i + 1, bytes, i, tail);
+                count--;
+                names[count] = null;
+                base64Names[count] = null;
+                strings[count] = null;
+                bytes[count] = null;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Index of the byte field written under <code>name</code> and
+     * <code>base64Name</code>, or -1.
+     */
+    int indexOfBytes(String name, String base64Name) {
+        for (int i = 0; i < count; i++) {
+            if (types[i] == TYPE_BYTES && name.equals(names[i]) && base64Name.equals(base64Names[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Turns field <code>i</code> into the string field <code>name</code>,
+     * keeping its position.
+     */
+    void replace(int i, String name, String value) {
+        types[i] = TYPE_STRING;
+        names[i] = name;
+        base64Names[i] = null;
+        strings[i] = value;
+        bytes[i] = null;
+    }
+
+    public void clear() {
+        Arrays.fill(names, 0, count, null);
+        Arrays.fill(base64Names, 0, count, null);
+        Arrays.fill(strings, 0, count, null);
+        Arrays.fill(bytes, 0, count, null);
+        count = 0;
+        sampleRule = null;
+    }
+
+    /**
+     * Snapshot for the writer thread. Byte payloads are never modified after
+     * they are stored, so they are shared rather than copied.
+     */
+    public CryptoEvent copy() {
+        CryptoEvent c = new CryptoEvent();
+        c.ensureCapacity(count);
+        c.count = count;
+        System.arraycopy(types, 0, c.types, 0, count);
+        System.arraycopy(names, 0, c.names, 0, count);
+        System.arraycopy(base64Names, 0, c.base64Names, 0, count);
+        System.arraycopy(strings, 0, c.strings, 0, count);
+        System.arraycopy(longs, 0, c.longs, 0, count);
+        System.arraycopy(bytes, 0, c.bytes, 0, count);
+        c.sampleRule = sampleRule;
+        return c;
+    }
+
+    /**
+     * The record as the JSON object the hooks used to build directly.
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder(64 + count * 32);
+        sb.append('{');
+        appendJsonFields(sb);
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Appends the fields as <code>"name":value</code> pairs without the
+     * enclosing braces; returns false when nothing was appended.
+     */
+    boolean appendJsonFields(StringBuilder sb) {
+        boolean first = true;
+        for (int i = 0; i < count; i++) {
+            switch (types[i]) {
+                case TYPE_STRING:
+                    first = separator(sb, first);
+                    JsonWriter.name(sb, names[i]);
+                    JsonWriter.string(sb, strings[i]);
+                    break;
+                case TYPE_LONG:
+                    first = separator(sb, first);
+                    JsonWriter.name(sb, names[i]);
+                    sb.append(longs[i]);
+                    break;
+                case TYPE_BYTES:
+                    if (names[i] != null) {
+                        first = separator(sb, first);
+                        JsonWriter.name(sb, names[i]);
+                        JsonWriter.payload(sb, bytes[i], 0, bytes[i].length);
+                    }
+                    if (base64Names[i] != null) {
+                        first = separator(sb, first);
+                        JsonWriter.name(sb, base64Names[i]);
+                        JsonWriter.base64(sb, bytes[i], 0, bytes[i].length);
+                    }
+                    break;
+                case TYPE_HEX:
+                    first = separator(sb, first);
+                    JsonWriter.name(sb, names[i]);
+                    JsonWriter.hex(sb, bytes[i], 0, bytes[i].length);
+                    break;
+                default:
+                    break;
+            }
+        }
+        return !first;
+    }
+
+    private static boolean separator(StringBuilder sb, boolean first) {
+        if (!first) {
+            sb.append(',');
+        }
+        return false;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of every field except <code>skipName</code> and
+     * <code>skipName2</code>, for spotting records with the same content
+     * (see RepeatFilter).
+     */
+    long contentHash(String skipName, String skipName2) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < count; i++) {
+            if (skipName.equals(names[i]) || skipName2.equals(names[i])) {
+                continue;
+            }
+            h = mix(h, types[i]);
+            h = mix(h, names[i]);
+            h = mix(h, base64Names[i]);
+            switch (types[i]) {
+                case TYPE_STRING:
+                    h = mix(h, strings[i]);
+                    break;
+                case TYPE_LONG:
+                    h = mix(h, longs[i]);
+                    break;
+                default:
+                    byte[] b = bytes[i];
+                    h = mix(h, b.length);
+                    for (int j = 0; j < b.length; j++) {
+                        h = (h ^ (b[j] & 0xff)) * 0x100000001b3L;
+                    }
+                    break;
+            }
+        }
+        return h;
+    }
+
+    private static long mix(long h, long v) {
+        for (int k = 0; k < 8; k++) {
+            h = (h ^ (v & 0xff)) * 0x100000001b3L;
+            v >>>= 8;
+        }
+        return h;
+    }
+
+    private static long mix(long h, String s) {
+        if (s == null) {
+            return mix(h, -1L);
+        }
+        h = mix(h, s.length());
+        for (int j = 0; j < s.length(); j++) {
+            char c = s.charAt(j);
+            h = (h ^ (c & 0xff)) * 0x100000001b3L;
+            h = (h ^ (c >>> 8)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    // a field that shares either name with an existing one takes its place
+    private int slot(String name, String base64Name) {
+        for (int i = 0; i < count; i++) {
+            if (overlaps(names[i], name, base64Name) || overlaps(base64Names[i], name, base64Name)) {
+                names[i] = name;
+                base64Names[i] = base64Name;
+                return i;
+            }
+        }
+        ensureCapacity(count + 1);
+        names[count] = name;
+        base64Names[count] = base64Name;
+        return count++;
+    }
+
+    private static boolean overlaps(String existing, String name, String base64Name) {
+        return existing != null && (existing.equals(name) || existing.equals(base64Name));
+    }
+
+    private void ensureCapacity(int n) {
+        if (n <= types.length) {
+            return;
+        }
+        int cap = Math.max(n, types.length * 2);
+        types = Arrays.copyOf(types, cap);
+        names = Arrays.copyOf(names, cap);
+        base64Names = Arrays.copyOf(base64Names, cap);
+        strings = Arrays.copyOf(strings, cap);
+        longs = Arrays.copyOf(longs, cap);
+        bytes = Arrays.copyOf(bytes, cap);
+    }
+}
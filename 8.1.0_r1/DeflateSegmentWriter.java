@@ -0,0 +1,236 @@
+package javax.crypto;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compressed log output for one log path, used with log.compress=deflate.
+ *
+ * The log is a series of files next to the path, Cipher.z.0001,
+ * Cipher.z.0002, ... (Cipher.bin.z.0001 for the binary format), each a
+ * list of blocks that decompress on their own:
+ * <pre>
+ * file  := "CLGZ" version:u8 block*
+ * block := rawLength:u32 compressedLength:u32 crc32:u32 deflate[compressedLength]   (big endian, raw deflate)
+ * </pre>
+ * Records are collected until log.compress.blockBytes or until the block
+ * is log.compress.flushMs old, then compressed and appended with one
+ * write, so a crash loses at most that much. The writer also flushes the
+ * block as soon as no records come for a second, and closes the file when
+ * the process exits normally. A file is closed after
+ * log.compress.fileBytes or log.compress.fileAgeMs; the writer starts the
+ * next one with fresh StackTag definitions and binary tables, so every
+ * file reads on its own and the oldest ones can be deleted to keep all
+ * files of the path under log.compress.maxBytes. Files are claimed with
+ * {@link File#createNewFile()} like mmap segments, and only files this
+ * process wrote or nobody wrote for log.compress.fileAgeMs are deleted, so
+ * processes of the same package never touch each other's open files. tools/CompressedLogReader
+ * turns them back into the plain log. Writer thread only.
+ */
+final class DeflateSegmentWriter {
+    static final String SUFFIX = ".z";
+    static final byte[] MAGIC = {'C', 'L', 'G', 'Z'};
+    static final int VERSION = 1;
+
+    private static final int BLOCK_BYTES = LoggerOptions.getInt("log.compress.blockBytes", 256 * 1024);
+    private static final long FLUSH_MS = LoggerOptions.getInt("log.compress.flushMs", 2000);
+    private static final long FILE_BYTES = LoggerOptions.getInt("log.compress.fileBytes", 8 * 1024 * 1024);
+    private static final long FILE_AGE_MS = LoggerOptions.getInt("log.compress.fileAgeMs", 60 * 60 * 1000);
+    private static final long MAX_BYTES = LoggerOptions.getInt("log.compress.maxBytes", 64 * 1024 * 1024);
+    private static final int LEVEL = LoggerOptions.getInt("log.compress.level", Deflater.DEFAULT_COMPRESSION);
+
+    private final String base;
+    private int sequence;
+    private FileOutputStream file;
+    private long fileBytes;
+    private long fileStarted;
+    // numbers of the files this process created
+    private final HashSet<Integer> created = new HashSet<>();
+
+    private byte[] raw = new byte[BLOCK_BYTES];
+    private int rawLength;
+    private long blockStarted;
+    private byte[] compressed = new byte[BLOCK_BYTES / 2 + 64];
+    private final Deflater deflater = new Deflater(LEVEL, true);
+    private final CRC32 crc = new CRC32();
+
+    DeflateSegmentWriter(String path) {
+        this.base = path + SUFFIX;
+        this.sequence = SegmentWriter.lastSequence(base);
+    }
+
+    /**
+     * True when the current file is full or old: the caller then starts
+     * its per-file state over and calls {@link #roll()} before writing.
+     */
+    boolean needsRoll(long now) {
+        return file != null && (fileBytes >= FILE_BYTES || now - fileStarted >= FILE_AGE_MS);
+    }
+
+    void write(byte[] data, long now) throws IOException {
+        if (rawLength == 0) {
+            blockStarted = now;
+        }
+        if (rawLength + data.length > raw.length) {
+            if (rawLength > 0) {
+                flushBlock();
+            }
+            if (data.length > raw.length) {
+                raw = new byte[data.length];
+            }
+            blockStarted = now;
+        }
+        System.arraycopy(data, 0, raw, rawLength, data.length);
+        rawLength += data.length;
+        if (rawLength >= BLOCK_BYTES) {
+            flushBlock();
+        }
+    }
+
+    /**
+     * Writes the pending block once it is log.compress.flushMs old.
+     */
+    void tick(long now) throws IOException {
+        if (rawLength > 0 && now - blockStarted >= FLUSH_MS) {
+            flushBlock();
+        }
+    }
+
+    /**
+     * Writes the pending block now, however small.
+     */
+    void flush() throws IOException {
+        if (rawLength > 0) {
+            flushBlock();
+        }
+    }
+
+    /**
+     * Finishes the current file; the next block starts a new one.
+     */
+    void roll() throws IOException {
+        flush();
+        closeFile();
+    }
+
+    void close() throws IOException {
+        try {
+            roll();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        deflater.reset();
+        deflater.setInput(raw, 0, rawLength);
+        deflater.finish();
+        int n = 0;
+        while (!deflater.finished()) {
+            if (n == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            n += deflater.deflate(compressed, n, compressed.length - n);
+        }
+        crc.reset();
+        crc.update(raw, 0, rawLength);
+
+        byte[] block = new byte[12 + n];
+        putInt(block, 0, rawLength);
+        putInt(block, 4, n);
+        putInt(block, 8, (int) crc.getValue());
+        System.arraycopy(compressed, 0, block, 12, n);
+        rawLength = 0;
+        // keep a one-off huge record from pinning its buffer
+        if (raw.length > BLOCK_BYTES) {
+            raw = new byte[BLOCK_BYTES];
+        }
+
+        if (file == null) {
+            openFile();
+        }
+        file.write(block);
+        fileBytes += block.length;
+    }
+
+    private void openFile() throws IOException {
+        sequence = SegmentWriter.claimSequence(base, sequence);
+        created.add(sequence);
+        String name = SegmentWriter.segmentName(base, sequence);
+        FileOutputStream f = new FileOutputStream(name, true);
+        byte[] header = new byte[MAGIC.length + 1];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[MAGIC.length] = VERSION;
+        f.write(header);
+        file = f;
+        fileBytes = header.length;
+        fileStarted = System.currentTimeMillis();
+        trim();
+    }
+
+    private void closeFile() throws IOException {
+        if (file != null) {
+            try {
+                file.close();
+            } finally {
+                file = null;
+            }
+        }
+    }
+
+    // delete the oldest files of this path until they leave room in MAX_BYTES for the new one
+    private void trim() {
+        long keep = MAX_BYTES - FILE_BYTES;
+        File first = new File(base).getAbsoluteFile();
+        File dir = first.getParentFile();
+        String prefix = first.getName() + ".";
+        String[] names = dir == null ? null : dir.list();
+        if (names == null) {
+            return;
+        }
+        int[] sequences = new int[names.length];
+        int count = 0;
+        long total = 0;
+        for (String name : names) {
+            if (!name.startsWith(prefix)) {
+                continue;
+            }
+            try {
+                sequences[count] = Integer.parseInt(name.substring(prefix.length()));
+            } catch (NumberFormatException ignored) {
+                continue;
+            }
+            total += new File(dir, name).length();
+            count++;
+        }
+        Arrays.sort(sequences, 0, count);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count && total > keep; i++) {
+            if (sequences[i] == sequence) {
+                continue;
+            }
+            File old = new File(SegmentWriter.segmentName(first.getPath(), sequences[i]));
+            // another process may still be writing it: its writer rolls once the file is FILE_AGE_MS old
+            if (!created.contains(sequences[i]) && now - old.lastModified() < FILE_AGE_MS) {
+                continue;
+            }
+            long length = old.length();
+            if (old.delete()) {
+                total -= length;
+                created.remove(sequences[i]);
+            }
+        }
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+}
@@ -0,0 +1,120 @@
+package javax.crypto;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free multi-producer/single-consumer queue of log records.
+ *
+ * All slots are allocated up front. Each slot carries a sequence number:
+ * a producer claims the next position with one CAS on <code>tail</code>,
+ * fills the slot and publishes it by advancing the slot's sequence; the
+ * single consumer (the {@link LogWriter} thread) moves published slots into
+ * its own entries and hands the slots back. Hook threads never take a lock
+ * and never wait: a full ring makes {@link #offer} return false.
+ */
+final class EventRing {
+    /**
+     * One record: a plain append (<code>tag</code> null, <code>body</code>
+     * set) or a tagged event with its captured stack.
+     */
+    static final class Entry {
+        String filepath;
+        // "CipherTag:" etc. for events, null for plain appends
+        String tag;
+        // plain appends only
+        String body;
+        CryptoEvent event;
+        Throwable stack;
+
+        void clear() {
+            filepath = null;
+            tag = null;
+            body = null;
+            event = null;
+            stack = null;
+        }
+    }
+
+    private final Entry[] slots;
+    // slot i is free for position p when sequences[i] == p, published when p + 1
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // consumer only
+    private long head;
+
+    EventRing(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        slots = new Entry[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Entry();
+            sequences.set(i, i);
+        }
+        mask = capacity - 1;
+    }
+
+    /**
+     * Publishes a record. Safe from any thread; returns false without
+     * blocking when the ring is full.
+     */
+    boolean offer(String filepath, String tag, String body, CryptoEvent event, Throwable stack) {
+        while (true) {
+            long pos = tail.get();
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    Entry slot = slots[index];
+                    slot.filepath = filepath;
+                    slot.tag = tag;
+                    slot.body = body;
+                    slot.event = event;
+                    slot.stack = stack;
+                    // volatile store, pairs with the consumer's idle check
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                // the slot one lap back has not been consumed yet
+                return false;
+            }
+            // another producer took this position, retry with the new tail
+        }
+    }
+
+    /**
+     * Moves up to <code>max</code> published records into
+     * <code>batch</code>, in publish order. Consumer thread only.
+     */
+    int drainTo(Entry[] batch, int max) {
+        int n = 0;
+        while (n < max) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            Entry slot = slots[index];
+            Entry dst = batch[n++];
+            dst.filepath = slot.filepath;
+            dst.tag = slot.tag;
+            dst.body = slot.body;
+            dst.event = slot.event;
+            dst.stack = slot.stack;
+            slot.clear();
+            sequences.lazySet(index, head + slots.length);
+            head++;
+        }
+        return n;
+    }
+
+    /**
+     * Whether the next record is not published yet. Consumer thread only.
+     */
+    boolean isEmpty() {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+}
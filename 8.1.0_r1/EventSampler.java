@@ -0,0 +1,180 @@
+package javax.crypto;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sampling of log events for apps that call a hooked method far more often
+ * than anyone can read (cache keys, image hashing).
+ *
+ * One sampler per hooked class, one {@link Rule} per algorithm. Options
+ * (monitor_options), all off by default:
+ * <pre>
+ * sample.MessageDigest.every=100          keep 1 event in 100
+ * sample.MessageDigest.perSecond=50       at most 50 events per second (bursts up to 50)
+ * sample.MessageDigest.firstPerSite=10    keep the first 10 events of each call stack
+ * sample.MessageDigest.MD5.every=1000     per algorithm, name as in capture.&lt;ALG&gt;.*
+ * </pre>
+ * every and perSecond are decided in the hook, before any payload is
+ * encoded or stack captured. firstPerSite needs the stack id and is decided
+ * on the writer thread. The next event a rule keeps carries "sampledOut",
+ * the number of events it dropped since the previous one.
+ */
+public final class EventSampler {
+    public static final EventSampler CIPHER = new EventSampler("Cipher");
+    public static final EventSampler MAC = new EventSampler("Mac");
+    public static final EventSampler MESSAGE_DIGEST = new EventSampler("MessageDigest");
+
+    private final String className;
+    private final Rule defaultRule;
+    private final ConcurrentHashMap<String, Rule> rules = new ConcurrentHashMap<>();
+
+    private EventSampler(String className) {
+        this.className = className;
+        String prefix = "sample." + className + ".";
+        this.defaultRule = new Rule(
+                LoggerOptions.getInt(prefix + "every", 0),
+                LoggerOptions.getInt(prefix + "perSecond", 0),
+                LoggerOptions.getInt(prefix + "firstPerSite", 0));
+    }
+
+    /**
+     * Rule for a Cipher transformation or a Mac/MessageDigest algorithm.
+     */
+    public Rule ruleFor(String algorithm) {
+        String key = algorithm == null ? "" : algorithm;
+        Rule rule = rules.get(key);
+        if (rule == null) {
+            String prefix = "sample." + className + "." + CapturePolicy.optionName(key) + ".";
+            rule = new Rule(
+                    LoggerOptions.getInt(prefix + "every", defaultRule.every),
+                    LoggerOptions.getInt(prefix + "perSecond", defaultRule.perSecond),
+                    LoggerOptions.getInt(prefix + "firstPerSite", defaultRule.firstPerSite));
+            rules.put(key, rule);
+        }
+        return rule;
+    }
+
+    /**
+     * Events dropped by all rules of this class since process start.
+     */
+    long droppedCount() {
+        long n = 0;
+        for (Rule rule : rules.values()) {
+            n += rule.droppedCount();
+        }
+        return n;
+    }
+
+    public static final class Rule {
+        final int every;
+        final int perSecond;
+        final int firstPerSite;
+        private final boolean unlimited;
+
+        private final AtomicLong seen = new AtomicLong();
+        // token bucket as a theoretical arrival time (GCRA), see admit()
+        private final AtomicLong nextFree = new AtomicLong(Long.MIN_VALUE);
+        private final long intervalNanos;
+        private final long burstNanos;
+        // dropped since the last kept event
+        private final AtomicLong pendingDropped = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        // stack id -> events seen, writer thread only
+        private final HashMap<Integer, int[]> siteCounts = new HashMap<>();
+
+        Rule(int every, int perSecond, int firstPerSite) {
+            this.every = Math.max(0, every);
+            this.perSecond = Math.max(0, perSecond);
+            this.firstPerSite = Math.max(0, firstPerSite);
+            this.unlimited = this.every <= 1 && this.perSecond == 0 && this.firstPerSite == 0;
+            this.intervalNanos = this.perSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / this.perSecond : 0;
+            this.burstNanos = TimeUnit.SECONDS.toNanos(1) - intervalNanos;
+        }
+
+        /**
+         * Hook side decision (every, perSecond). Lock free; a rule without
+         * limits answers true without touching shared state.
+         */
+        public boolean admit() {
+            if (unlimited) {
+                return true;
+            }
+            if (every > 1 && seen.getAndIncrement() % every != 0) {
+                drop();
+                return false;
+            }
+            if (perSecond > 0 && !takeToken()) {
+                drop();
+                return false;
+            }
+            return true;
+        }
+
+        private boolean takeToken() {
+            long now = System.nanoTime();
+            while (true) {
+                long tat = nextFree.get();
+                long start = tat == Long.MIN_VALUE || tat < now ? now : tat;
+                if (start - now > burstNanos) {
+                    return false;
+                }
+                if (nextFree.compareAndSet(tat, start + intervalNanos)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Marks <code>event</code> as kept by this rule: adds "sampledOut"
+         * when events were dropped before it and, unless
+         * <code>siteExempt</code>, leaves the firstPerSite check to the
+         * writer thread.
+         */
+        public void stamp(CryptoEvent event, boolean siteExempt) {
+            if (unlimited) {
+                event.remove("sampledOut");
+                return;
+            }
+            long n = pendingDropped.getAndSet(0);
+            if (n > 0) {
+                event.put("sampledOut", n);
+            } else {
+                event.remove("sampledOut");
+            }
+            event.sampleRule = siteExempt || firstPerSite == 0 ? null : this;
+        }
+
+        /**
+         * Writer side decision (firstPerSite) for an event with stack id
+         * <code>stackId</code>.
+         */
+        boolean admitSite(int stackId) {
+            int[] count = siteCounts.get(stackId);
+            if (count == null) {
+                count = new int[1];
+                siteCounts.put(stackId, count);
+            }
+            if (count[0] >= firstPerSite) {
+                drop();
+                return false;
+            }
+            count[0]++;
+            return true;
+        }
+
+        private void drop() {
+            pendingDropped.incrementAndGet();
+            dropped.incrementAndGet();
+        }
+
+        /**
+         * Events dropped by this rule since process start.
+         */
+        public long droppedCount() {
+            return dropped.get();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package javax.crypto;
+
+import java.util.Collection;
+
+/**
+ * Immutable string set built once from a collection: open addressing with
+ * linear probing in a power-of-two table at most half full. A lookup is
+ * the String's cached hashCode, a mix, and usually one slot; the stored
+ * hash is compared before equals() so a miss rarely touches the chars.
+ */
+final class FrozenStringSet {
+    private final String[] keys;
+    private final int[] hashes;
+    private final int mask;
+    private final int size;
+
+    FrozenStringSet(Collection<String> values) {
+        int capacity = 2;
+        while (capacity < values.size() * 2) {
+            capacity <<= 1;
+        }
+        keys = new String[capacity];
+        hashes = new int[capacity];
+        mask = capacity - 1;
+        int n = 0;
+        for (String value : values) {
+            int h = value.hashCode();
+            int i = mix(h) & mask;
+            while (keys[i] != null) {
+                if (hashes[i] == h && keys[i].equals(value)) {
+                    break;
+                }
+                i = (i + 1) & mask;
+            }
+            if (keys[i] == null) {
+                keys[i] = value;
+                hashes[i] = h;
+                n++;
+            }
+        }
+        size = n;
+    }
+
+    boolean contains(String value) {
+        int h = value.hashCode();
+        int i = mix(h) & mask;
+        String key;
+        while ((key = keys[i]) != null) {
+            if (hashes[i] == h && key.equals(value)) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // package names share long prefixes, spread the hash before masking
+    private static int mix(int h) {
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,104 @@
+package javax.crypto;
+
+/**
+ * Streaming JSON output for log records: values are escaped in one pass
+ * straight into the caller's StringBuilder, payload bytes are encoded by
+ * {@link PayloadEncoder} into its scratch array without an intermediate
+ * String. Escaping matches Android's org.json
+ * (JSONStringer), so the lines look exactly as they did when the hooks
+ * built JSONObjects.
+ */
+final class JsonWriter {
+    private static final char[] HEX = PayloadEncoder.HEX;
+
+    private JsonWriter() {
+    }
+
+    static void name(StringBuilder sb, String name) {
+        string(sb, name);
+        sb.append(':');
+    }
+
+    static void string(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            escape(sb, s.charAt(i));
+        }
+        sb.append('"');
+    }
+
+    /**
+     * {@link PayloadEncoder#byteArrayToString(byte[], int, int)} as a JSON string.
+     */
+    static void payload(StringBuilder sb, byte[] b, int off, int len) {
+        if (!PayloadEncoder.isMostlyPrintable(b, off, len)) {
+            base64(sb, b, off, len);
+            return;
+        }
+        char[] chars = PayloadEncoder.printableChars(b, off, len);
+        sb.append('"');
+        for (int i = 0; i < len; i++) {
+            escape(sb, chars[i]);
+        }
+        sb.append('"');
+    }
+
+    /**
+     * {@link PayloadEncoder#base64(byte[], int, int)} as a JSON string
+     * ('/' escaped like org.json does).
+     */
+    static void base64(StringBuilder sb, byte[] b, int off, int len) {
+        int n = PayloadEncoder.base64Length(len);
+        char[] chars = PayloadEncoder.base64Chars(b, off, len);
+        sb.ensureCapacity(sb.length() + n + len / 16 + 2);
+        sb.append('"');
+        int start = 0;
+        for (int i = 0; i < n; i++) {
+            if (chars[i] == '/') {
+                sb.append(chars, start, i - start).append('\\');
+                start = i;
+            }
+        }
+        sb.append(chars, start, n - start);
+        sb.append('"');
+    }
+
+    static void hex(StringBuilder sb, byte[] b, int off, int len) {
+        sb.ensureCapacity(sb.length() + len * 2 + 2);
+        sb.append('"');
+        sb.append(PayloadEncoder.hexChars(b, off, len), 0, len * 2);
+        sb.append('"');
+    }
+
+    private static void escape(StringBuilder sb, char c) {
+        switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                sb.append('\\').append(c);
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            case '\b':
+                sb.append("\\b");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\f':
+                sb.append("\\f");
+                break;
+            default:
+                if (c <= 0x1f) {
+                    sb.append("\\u00").append(HEX[c >>> 4]).append(HEX[c & 0xf]);
+                } else {
+                    sb.append(c);
+                }
+                break;
+        }
+    }
+}
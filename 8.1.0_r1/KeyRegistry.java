@@ -0,0 +1,111 @@
+package javax.crypto;
+
+import java.util.ArrayList;
+
+/**
+ * Keys and IVs written once per log file, used with cipher.keyIds=true.
+ *
+ * The writer replaces the "key"/"Key(Base64)" pair of a record by
+ * "KeyId", a 64-bit fingerprint of the key bytes, and "iv"/"Iv(Base64)" by
+ * "IvId". The first record of a file that uses a fingerprint is preceded
+ * by its definition:
+ * <pre>
+ * KeyTag:{"KeyId":"5f0e2c7a1d93b846","key":"0123456789123456","Key(Base64)":"MDEy..."}
+ * KeyTag:{"IvId":"a1b2...","iv":"...","Iv(Base64)":"..."}
+ * </pre>
+ * so the KeyTag records of a file list every key the app used in it, each
+ * once, in the order they first appeared. One registry per file and field
+ * remembers what it defined, so an IV with the same bytes as a key still
+ * gets its own IvId definition: an open addressing set of fingerprints in a
+ * power-of-two long[] at most half full. Once cipher.keyIds.capacity keys
+ * (or IVs) are defined the table stops growing and further new ones stay
+ * inline in their records. The bytes of every definition are kept so the
+ * writer can send them again to a collector that lost them, see
+ * {@link SocketSink}. Writer thread only.
+ */
+final class KeyRegistry {
+    static final boolean ENABLED = LoggerOptions.getBoolean("cipher.keyIds", true);
+    private static final int CAPACITY = Math.max(1, LoggerOptions.getInt("cipher.keyIds.capacity", 1024));
+
+    static final String KEY_TAG = "KeyTag:";
+
+    // what is replaced: bytes field names, and the field holding the fingerprint
+    static final String[][] FIELDS = {
+            {"key", "Key(Base64)", "KeyId"},
+            {"iv", "Iv(Base64)", "IvId"},
+    };
+
+    static final int DEFINED = 0;
+    static final int ADDED = 1;
+    static final int FULL = 2;
+
+    // 0 marks an empty slot; a fingerprint of 0 is stored as 1
+    private final long[] table;
+    private final int mask;
+    private int size;
+    // definitions in the order they were written
+    private final ArrayList<byte[]> materials = new ArrayList<>();
+
+    KeyRegistry() {
+        int capacity = 2;
+        while (capacity < CAPACITY * 2) {
+            capacity <<= 1;
+        }
+        table = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * {@link #DEFINED} when <code>fingerprint</code> is already in the
+     * file, {@link #ADDED} when the caller has to write its definition
+     * now, {@link #FULL} when it must stay inline.
+     */
+    int add(long fingerprint, byte[] material) {
+        long f = fingerprint == 0 ? 1 : fingerprint;
+        int i = (int) f & mask;
+        long slot;
+        while ((slot = table[i]) != 0) {
+            if (slot == f) {
+                return DEFINED;
+            }
+            i = (i + 1) & mask;
+        }
+        if (size >= CAPACITY) {
+            return FULL;
+        }
+        table[i] = f;
+        size++;
+        materials.add(material);
+        return ADDED;
+    }
+
+    /**
+     * The key or IV bytes of every definition, oldest first.
+     */
+    ArrayList<byte[]> materials() {
+        return materials;
+    }
+
+    /**
+     * 64-bit FNV-1a over the bytes, finished with the murmur3 mix so the
+     * low bits used for the slot depend on every byte.
+     */
+    static long fingerprint(byte[] b) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < b.length; i++) {
+            h = (h ^ (b[i] & 0xff)) * 0x100000001b3L;
+        }
+        h ^= b.length;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    static String toHex(long v) {
+        String s = Long.toHexString(v);
+        return s.length() == 16 ? s : "0000000000000000".substring(s.length()) + s;
+    }
+}
@@ -0,0 +1,93 @@
+package javax.crypto;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram in nanoseconds with log-linear buckets, the
+ * layout HdrHistogram uses: values below 32 are exact, above that every
+ * power of two is split into 16 buckets, so a reported percentile is at
+ * most ~6% above the real value. 608 buckets cover up to 2^41 ns (about 36
+ * minutes); anything longer lands in the last one. Recording is one
+ * atomic increment, a LongAdder add and a rarely contended max update.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int HALF = 1 << (SUB_BITS - 1);
+    private static final int MAX_MSB = 40;
+    private static final int BUCKETS = (MAX_MSB - SUB_BITS + 3) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(index(nanos));
+        sum.add(nanos);
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos)) {
+            m = max.get();
+        }
+    }
+
+    /**
+     * Appends <code>"&lt;prefix&gt;P50Ns":..,...,"&lt;prefix&gt;MaxNs":..,"&lt;prefix&gt;MeanNs":..</code>
+     * (no leading comma). Percentiles are bucket upper bounds.
+     */
+    void appendJsonFields(StringBuilder sb, String prefix) {
+        long[] snapshot = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        long maxNs = max.get();
+        sb.append('"').append(prefix).append("P50Ns\":").append(percentile(snapshot, n, 0.50, maxNs));
+        sb.append(",\"").append(prefix).append("P90Ns\":").append(percentile(snapshot, n, 0.90, maxNs));
+        sb.append(",\"").append(prefix).append("P99Ns\":").append(percentile(snapshot, n, 0.99, maxNs));
+        sb.append(",\"").append(prefix).append("P999Ns\":").append(percentile(snapshot, n, 0.999, maxNs));
+        sb.append(",\"").append(prefix).append("MaxNs\":").append(maxNs);
+        sb.append(",\"").append(prefix).append("MeanNs\":").append(n == 0 ? 0 : sum.sum() / n);
+    }
+
+    private static long percentile(long[] snapshot, long n, double q, long maxNs) {
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * n);
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), maxNs);
+            }
+        }
+        return maxNs;
+    }
+
+    static int index(long v) {
+        if (v < (1 << SUB_BITS)) {
+            return (int) v;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(v);
+        if (msb > MAX_MSB) {
+            return BUCKETS - 1;
+        }
+        int shift = msb - SUB_BITS + 1;
+        return shift * HALF + (int) (v >>> shift);
+    }
+
+    // highest value that lands in bucket i
+    static long upperBound(int i) {
+        if (i < (1 << SUB_BITS)) {
+            return i;
+        }
+        int shift = i / HALF - 1;
+        long mantissa = i - shift * HALF;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
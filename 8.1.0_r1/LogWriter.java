@@ -0,0 +1,667 @@
+package javax.crypto;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background writer behind {@link MyUtil#appendFile(String, String)}.
+ *
+ * Hooks only publish the record into a preallocated lock-free ring
+ * ({@link EventRing}), so threads logging at the same time never contend
+ * on a monitor. A single daemon thread drains the ring in batches, groups
+ * the records by target file and writes each group with one call on a file
+ * channel that stays open for the life of the process. The thread is
+ * started on the first record, so processes that never log (zygote,
+ * unmonitored apps) never get it.
+ *
+ * Events are serialized here too: as "Tag:{json}" lines by default, or with
+ * log.format=binary through {@link BinaryEventEncoder} into a ".bin" file
+ * next to the text one (tools/CryptoLogDecoder turns it back into JSON).
+ * What goes to logcat as well is up to {@link LogcatMirror}. With
+ * log.writer=mmap the files are memory mapped segments instead, see
+ * {@link SegmentWriter}, with log.compress=deflate compressed ones, see
+ * {@link DeflateSegmentWriter}; with sink.address the same bytes are also streamed
+ * to a collector, see {@link SocketSink}. When the process exits normally a
+ * shutdown hook lets the thread write what is left and close every file;
+ * a killed process loses the ring and the compressed block not yet written. Sampling (firstPerSite, see
+ * {@link EventSampler}) and collapsing of repeated records
+ * ({@link RepeatFilter}) also happen here, so do the KeyTag definitions
+ * of {@link KeyRegistry} and the periodic {@link LoggerMetrics} summary.
+ */
+final class LogWriter implements Runnable {
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final int BATCH_SIZE = 256;
+
+    // how long the writer sleeps when idle and no producer wakes it
+    private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // how long the shutdown hook waits for the writer to close its files
+    private static final long CLOSE_TIMEOUT_MS = 2000;
+
+    private static final EventRing ring = new EventRing(QUEUE_CAPACITY);
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile Thread writerThread;
+    // set while the writer is about to park, so producers know to unpark it
+    private static volatile boolean idle;
+    // set by the shutdown hook: write what is left, close the files and stop
+    private static volatile boolean closing;
+
+    private static final int MAX_KEPT_LINE_CHARS = 1024 * 1024;
+
+    static final String STACK_TAG = "StackTag:";
+    static final String BINARY_SUFFIX = ".bin";
+
+    private static final boolean BINARY = "binary".equals(LoggerOptions.getString("log.format", "json"));
+    // append: one file per log, written with FileChannel; mmap: SegmentWriter
+    private static final boolean MMAP = "mmap".equals(LoggerOptions.getString("log.writer", "append"));
+    // log.compress=deflate: DeflateSegmentWriter instead of append/mmap
+    private static final boolean COMPRESS = "deflate".equals(LoggerOptions.getString("log.compress", "off"));
+    // sink.address: also (sink.files=false: only) stream to a collector
+    private static final SocketSink sink = SocketSink.start();
+    private static final boolean FILES = sink == null || SocketSink.FILES;
+
+    private final HashMap<String, FileChannel> channels = new HashMap<>();
+    private final HashMap<String, SegmentWriter> segments = new HashMap<>();
+    private final HashMap<String, DeflateSegmentWriter> compressed = new HashMap<>();
+    private final StackTable stackTable = new StackTable();
+    // stack ids already defined in each file
+    private final HashMap<String, BitSet> definedStacks = new HashMap<>();
+    // per output file and KeyRegistry.FIELDS entry, the keys and IVs it has a KeyTag definition for
+    private final HashMap<String, KeyRegistry[]> definedKeys = new HashMap<>();
+    private final HashMap<String, BinaryEventEncoder> encoders = new HashMap<>();
+    private final LinkedHashMap<String, ByteArrayOutputStream> pending = new LinkedHashMap<>();
+    private final RepeatFilter repeats = new RepeatFilter();
+    // reused for every text record
+    private StringBuilder line = new StringBuilder(1024);
+    private final ArrayList<RepeatFilter.Record> finishedRepeats = new ArrayList<>();
+    private long reportedDropped = 0;
+    private long nextMetricsMillis = System.currentTimeMillis() + LoggerMetrics.intervalMs();
+    private long lastMetricsActivity = 0;
+    // SocketSink epoch the collector has all definitions for
+    private int sinkEpoch = 0;
+
+    private LogWriter() {
+    }
+
+    /**
+     * Queues a record for <code>filepath</code>. Never blocks: when the ring
+     * is full the record is dropped and counted.
+     */
+    static void submit(String filepath, String content) {
+        enqueue(filepath, null, content, null, null);
+    }
+
+    /**
+     * Queues a tagged event. The caller must not modify <code>event</code>
+     * afterwards; it and <code>stack</code> are serialized on the writer thread.
+     */
+    static void submitEvent(String filepath, String tag, CryptoEvent event, Throwable stack) {
+        enqueue(filepath, tag, null, event, stack);
+    }
+
+    private static void enqueue(String filepath, String tag, String body, CryptoEvent event, Throwable stack) {
+        Thread t = writerThread;
+        if (t == null) {
+            start();
+            t = writerThread;
+        }
+        if (!ring.offer(filepath, tag, body, event, stack)) {
+            dropped.incrementAndGet();
+        } else if (idle) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    private static synchronized void start() {
+        if (writerThread != null) {
+            return;
+        }
+        final Thread t = new Thread(new LogWriter(), "CryptoLogWriter");
+        t.setDaemon(true);
+        t.start();
+        writerThread = t;
+        try {
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    closing = true;
+                    LockSupport.unpark(t);
+                    try {
+                        t.join(CLOSE_TIMEOUT_MS);
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }, "CryptoLogWriterExit"));
+        } catch (IllegalStateException e) {
+            // already shutting down
+        }
+    }
+
+    @Override
+    public void run() {
+        EventRing.Entry[] batch = new EventRing.Entry[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch[i] = new EventRing.Entry();
+        }
+        while (true) {
+            int n = 0;
+            try {
+                n = ring.drainTo(batch, BATCH_SIZE);
+                if (n == 0 && closing) {
+                    close(batch);
+                    return;
+                }
+                if (n == 0) {
+                    // publish idle before the last look, producers check it after publishing
+                    idle = true;
+                    if (ring.isEmpty() && !closing) {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                    idle = false;
+                    if (ring.isEmpty() && (RepeatFilter.ENABLED || LoggerMetrics.isEnabled() || COMPRESS)) {
+                        // write the counts of repeat windows that ended meanwhile and metrics
+                        writeBatch(batch, 0);
+                        if (COMPRESS) {
+                            // nothing came for a while: don't keep a small block waiting for flushMs
+                            flushCompressed();
+                        }
+                    }
+                    continue;
+                }
+                writeBatch(batch, n);
+            } catch (Throwable e) {
+                ContextHolder.logWarning("LogWriter excepiton:" + e.getMessage());
+            } finally {
+                for (int i = 0; i < n; i++) {
+                    batch[i].clear();
+                }
+            }
+        }
+    }
+
+    // the ring is empty and the process exits: end the open repeat windows, write and close everything
+    private void close(EventRing.Entry[] batch) {
+        if (RepeatFilter.ENABLED) {
+            repeats.expire(Long.MAX_VALUE, finishedRepeats);
+            writeFinishedRepeats();
+        }
+        writeBatch(batch, 0);
+        for (FileChannel channel : channels.values()) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                ContextHolder.logWarning("appendFile excepiton:" + e.getMessage());
+            }
+        }
+        channels.clear();
+        for (SegmentWriter segment : segments.values()) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                ContextHolder.logWarning("appendFile excepiton:" + e.getMessage());
+            }
+        }
+        segments.clear();
+        for (DeflateSegmentWriter writer : compressed.values()) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                ContextHolder.logWarning("appendFile excepiton:" + e.getMessage());
+            }
+        }
+        compressed.clear();
+    }
+
+    private void writeBatch(EventRing.Entry[] batch, int count) {
+        if (sink != null) {
+            int epoch = sink.epoch();
+            if (epoch != sinkEpoch) {
+                // the collector missed frames: define stacks, keys and binary tables again
+                sinkEpoch = epoch;
+                if (FILES) {
+                    resendDefinitions();
+                } else {
+                    definedStacks.clear();
+                    definedKeys.clear();
+                    encoders.clear();
+                }
+            }
+        }
+        if (COMPRESS) {
+            rollCompressed();
+        }
+        long now = RepeatFilter.ENABLED ? System.currentTimeMillis() : 0;
+        for (int i = 0; i < count; i++) {
+            EventRing.Entry entry = batch[i];
+            if (entry.tag == null) {
+                append(entry.filepath, null, entry.body);
+                continue;
+            }
+            StackTraceElement[] frames = entry.stack == null ? null : StackCapture.frames(entry.stack);
+            if (!admitSite(entry.event, frames)) {
+                continue;
+            }
+            if (RepeatFilter.ENABLED) {
+                boolean full = repeats.admit(entry.filepath, entry.tag, entry.event, frames, now, finishedRepeats);
+                // before anything that may refer to a session written here
+                writeFinishedRepeats();
+                if (!full) {
+                    LoggerMetrics.repeatsCollapsed.increment();
+                    continue;
+                }
+            }
+            writeEvent(entry.filepath, entry.tag, entry.event, frames);
+        }
+        if (RepeatFilter.ENABLED) {
+            repeats.expire(now, finishedRepeats);
+            writeFinishedRepeats();
+        }
+        if (LoggerMetrics.isEnabled()) {
+            appendMetricsIfDue();
+        }
+
+        for (Map.Entry<String, ByteArrayOutputStream> group : pending.entrySet()) {
+            ByteArrayOutputStream out = group.getValue();
+            if (out.size() > 0) {
+                write(group.getKey(), out.toByteArray());
+                out.reset();
+            }
+        }
+        // only a handful of files are ever written, don't let the map grow
+        if (pending.size() > 16) {
+            pending.clear();
+        }
+        if (COMPRESS) {
+            tickCompressed();
+        }
+
+        long d = dropped.get();
+        if (d != reportedDropped) {
+            ContextHolder.logWarning("LogWriter ring full, dropped " + (d - reportedDropped) + " records");
+            reportedDropped = d;
+        }
+    }
+
+    private ByteArrayOutputStream pendingFor(String filepath) {
+        ByteArrayOutputStream out = pending.get(filepath);
+        if (out == null) {
+            out = new ByteArrayOutputStream(1024);
+            pending.put(filepath, out);
+        }
+        return out;
+    }
+
+    private void append(String filepath, String tag, String content) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        LogcatMirror.text(filepath, tag, content, bytes.length);
+        pendingFor(filepath).write(bytes, 0, bytes.length);
+    }
+
+    private void writeEvent(String filepath, String tag, CryptoEvent event, StackTraceElement[] frames) {
+        if (KeyRegistry.ENABLED && !KeyRegistry.KEY_TAG.equals(tag)) {
+            referenceKeys(filepath, event);
+        }
+        long start = LoggerMetrics.start();
+        if (BINARY) {
+            encodeBinary(filepath, tag, event, frames);
+        } else {
+            append(filepath, tag, render(filepath, tag, event, frames));
+        }
+        if (LoggerMetrics.isEnabled()) {
+            LoggerMetrics.SERIALIZE.record(System.nanoTime() - start);
+            LoggerMetrics.recordsWritten.increment();
+        }
+    }
+
+    /**
+     * Queues for the collector, ahead of anything else, what the files
+     * already define (binary header and string table, StackTag and KeyTag
+     * records), so the records that follow go to both unchanged.
+     */
+    private void resendDefinitions() {
+        if (BINARY) {
+            for (Map.Entry<String, BinaryEventEncoder> e : encoders.entrySet()) {
+                String path = e.getKey();
+                BinaryEventEncoder encoder = e.getValue();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+                encoder.writeDefinitions(stackTable, out);
+                KeyRegistry[] registries = definedKeys.get(path);
+                for (int f = 0; registries != null && f < registries.length; f++) {
+                    if (registries[f] == null) {
+                        continue;
+                    }
+                    for (byte[] material : registries[f].materials()) {
+                        // strings it needs were defined with the original KeyTag record
+                        encoder.encode(KeyRegistry.KEY_TAG, keyDefinition(f, material), null, 0, out);
+                    }
+                }
+                sink.offer(sinkName(path), out.toByteArray(), sinkEpoch);
+            }
+            return;
+        }
+        HashSet<String> paths = new HashSet<>(definedStacks.keySet());
+        paths.addAll(definedKeys.keySet());
+        StringBuilder sb = new StringBuilder(1024);
+        for (String path : paths) {
+            sb.setLength(0);
+            KeyRegistry[] registries = definedKeys.get(path);
+            for (int f = 0; registries != null && f < registries.length; f++) {
+                if (registries[f] == null) {
+                    continue;
+                }
+                for (byte[] material : registries[f].materials()) {
+                    sb.append(KeyRegistry.KEY_TAG).append('{');
+                    keyDefinition(f, material).appendJsonFields(sb);
+                    sb.append("}\r\n");
+                }
+            }
+            BitSet stacks = definedStacks.get(path);
+            for (int id = stacks == null ? -1 : stacks.nextSetBit(0); id >= 0; id = stacks.nextSetBit(id + 1)) {
+                appendStackDefinition(sb, id, stackTable.frames(id));
+            }
+            sink.offer(sinkName(path), sb.toString().getBytes(StandardCharsets.UTF_8), sinkEpoch);
+        }
+    }
+
+    // replaces key and iv bytes by their fingerprint, writing the KeyTag definition first when the file has none
+    private void referenceKeys(String filepath, CryptoEvent event) {
+        for (int f = 0; f < KeyRegistry.FIELDS.length; f++) {
+            String[] field = KeyRegistry.FIELDS[f];
+            int i = event.indexOfBytes(field[0], field[1]);
+            if (i < 0 || event.bytes[i].length == 0) {
+                continue;
+            }
+            byte[] material = event.bytes[i];
+            long fingerprint = KeyRegistry.fingerprint(material);
+            if (defineKey(filepath, f, fingerprint, material)) {
+                event.replace(i, field[2], KeyRegistry.toHex(fingerprint));
+            }
+        }
+    }
+
+    // false when the file's registry is full and the bytes stay in the record
+    private boolean defineKey(String filepath, int f, long fingerprint, byte[] material) {
+        String path = BINARY ? filepath + BINARY_SUFFIX : filepath;
+        // one registry per field: an iv with the bytes of a key still needs its IvId definition
+        KeyRegistry[] registries = definedKeys.get(path);
+        if (registries == null) {
+            registries = new KeyRegistry[KeyRegistry.FIELDS.length];
+            definedKeys.put(path, registries);
+        }
+        KeyRegistry keys = registries[f];
+        if (keys == null) {
+            keys = new KeyRegistry();
+            registries[f] = keys;
+        }
+        int state = keys.add(fingerprint, material);
+        if (state == KeyRegistry.FULL) {
+            return false;
+        }
+        if (state == KeyRegistry.ADDED) {
+            writeEvent(filepath, KeyRegistry.KEY_TAG, keyDefinition(f, material), null);
+        }
+        return true;
+    }
+
+    // the KeyTag record of one key or iv
+    private static CryptoEvent keyDefinition(int f, byte[] material) {
+        String[] field = KeyRegistry.FIELDS[f];
+        CryptoEvent definition = new CryptoEvent();
+        definition.put(field[2], KeyRegistry.toHex(KeyRegistry.fingerprint(material)));
+        definition.adoptBytes(field[0], field[1], material);
+        return definition;
+    }
+
+    private void appendMetricsIfDue() {
+        long now = System.currentTimeMillis();
+        if (now < nextMetricsMillis) {
+            return;
+        }
+        nextMetricsMillis = now + LoggerMetrics.intervalMs();
+        // nothing new since the last summary
+        long activity = LoggerMetrics.activity();
+        if (activity == lastMetricsActivity) {
+            return;
+        }
+        lastMetricsActivity = activity;
+        String packageName = ContextHolder.getMonitorDecision().packageName;
+        if (!packageName.isEmpty()) {
+            append(MyUtil.DATA_DIR + packageName + "/Metrics", LoggerMetrics.METRICS_TAG,
+                    LoggerMetrics.summary(dropped.get()));
+        }
+    }
+
+    private void writeFinishedRepeats() {
+        for (int i = 0; i < finishedRepeats.size(); i++) {
+            RepeatFilter.Record record = finishedRepeats.get(i);
+            writeEvent(record.filepath, record.tag, record.event, record.frames);
+        }
+        finishedRepeats.clear();
+    }
+
+    private void encodeBinary(String filepath, String tag, CryptoEvent event, StackTraceElement[] frames) {
+        String path = filepath + BINARY_SUFFIX;
+        BinaryEventEncoder encoder = encoders.get(path);
+        if (encoder == null) {
+            encoder = new BinaryEventEncoder();
+            encoders.put(path, encoder);
+        }
+        int stackId = frames != null && StackCapture.DEDUP ? stackTable.idFor(frames) : 0;
+        ByteArrayOutputStream out = pendingFor(path);
+        int before = out.size();
+        encoder.encode(tag, event, frames, stackId, out);
+        LogcatMirror.binary(path, tag, out.size() - before);
+    }
+
+    /**
+     * Builds the final line(s) of an entry. The stack trace is formatted
+     * here, on the writer thread. With stack.dedup on, a stack is written
+     * once per file as a "StackTag:" definition record and events only carry
+     * its "StackId"; otherwise the full Base64 "StackTrace" is spliced into
+     * the JSON body.
+     */
+    private String render(String filepath, String tag, CryptoEvent event, StackTraceElement[] frames) {
+        StringBuilder sb = line;
+        sb.setLength(0);
+        int stackId = frames != null && StackCapture.DEDUP ? stackTable.idFor(frames) : 0;
+        if (stackId != 0) {
+            BitSet defined = definedStacks.get(filepath);
+            if (defined == null) {
+                defined = new BitSet();
+                definedStacks.put(filepath, defined);
+            }
+            if (!defined.get(stackId)) {
+                appendStackDefinition(sb, stackId, frames);
+                defined.set(stackId);
+            }
+        }
+
+        sb.append(tag).append('{');
+        boolean hasFields = event.appendJsonFields(sb);
+        if (frames != null) {
+            if (hasFields) {
+                sb.append(',');
+            }
+            if (stackId != 0) {
+                sb.append("\"StackId\":").append(StackTable.writtenId(stackId));
+            } else {
+                sb.append("\"StackTrace\":\"").append(encodeStack(frames)).append('"');
+            }
+        }
+        String content = sb.append("}\r\n").toString();
+        // one huge payload must not pin its buffer for the life of the process
+        if (sb.capacity() > MAX_KEPT_LINE_CHARS) {
+            line = new StringBuilder(1024);
+        }
+        return content;
+    }
+
+    // EventSampler firstPerSite; call sites are told apart by stack id
+    private boolean admitSite(CryptoEvent event, StackTraceElement[] frames) {
+        EventSampler.Rule rule = event.sampleRule;
+        if (rule == null || frames == null) {
+            return true;
+        }
+        int stackId = stackTable.idFor(frames);
+        return stackId == 0 || rule.admitSite(stackId);
+    }
+
+    private static void appendStackDefinition(StringBuilder sb, int stackId, StackTraceElement[] frames) {
+        sb.append(STACK_TAG).append("{\"StackId\":").append(StackTable.writtenId(stackId))
+                .append(",\"StackTrace\":\"").append(encodeStack(frames)).append("\"}\r\n");
+    }
+
+    private static String encodeStack(StackTraceElement[] frames) {
+        return PayloadEncoder.base64(StackCapture.formatFrames(frames).getBytes());
+    }
+
+    private void write(String filepath, byte[] data) {
+        long start = LoggerMetrics.start();
+        if (sink != null) {
+            sink.offer(sinkName(filepath), data, sinkEpoch);
+        }
+        if (!FILES) {
+            // sink only
+        } else if (COMPRESS) {
+            writeCompressed(filepath, data);
+        } else if (MMAP) {
+            writeSegment(filepath, data);
+        } else {
+            writeChannel(filepath, data);
+        }
+        if (LoggerMetrics.isEnabled()) {
+            LoggerMetrics.WRITE.record(System.nanoTime() - start);
+            LoggerMetrics.bytesWritten.add(data.length);
+        }
+    }
+
+    private void writeChannel(String filepath, byte[] data) {
+        try {
+            FileChannel channel = channels.get(filepath);
+            if (channel == null) {
+                // FileOutputStream in append mode creates the file when missing
+                channel = new FileOutputStream(filepath, true).getChannel();
+                channels.put(filepath, channel);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            ContextHolder.logWarning("appendFile excepiton:" + e.getMessage());
+            FileChannel broken = channels.remove(filepath);
+            if (broken != null) {
+                try {
+                    broken.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // path below the data dir, "com.hookme/Cipher"
+    private static String sinkName(String filepath) {
+        if (filepath.startsWith(MyUtil.DATA_DIR)) {
+            return filepath.substring(MyUtil.DATA_DIR.length());
+        }
+        return new File(filepath).getName();
+    }
+
+    // closes compressed files that are full or old; what goes into the next one defines its stacks again
+    private void rollCompressed() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, DeflateSegmentWriter> e : compressed.entrySet()) {
+            if (!e.getValue().needsRoll(now)) {
+                continue;
+            }
+            definedStacks.remove(e.getKey());
+            definedKeys.remove(e.getKey());
+            encoders.remove(e.getKey());
+            try {
+                e.getValue().roll();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                ContextHolder.logWarning("appendFile excepiton:" + ex.getMessage());
+            }
+        }
+    }
+
+    private void writeCompressed(String filepath, byte[] data) {
+        DeflateSegmentWriter writer = compressed.get(filepath);
+        if (writer == null) {
+            writer = new DeflateSegmentWriter(filepath);
+            compressed.put(filepath, writer);
+        }
+        try {
+            writer.write(data, System.currentTimeMillis());
+        } catch (IOException e) {
+            e.printStackTrace();
+            ContextHolder.logWarning("appendFile excepiton:" + e.getMessage());
+            compressed.remove(filepath);
+            try {
+                writer.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // writes compressed blocks that have waited log.compress.flushMs
+    private void tickCompressed() {
+        long now = System.currentTimeMillis();
+        for (DeflateSegmentWriter writer : compressed.values()) {
+            try {
+                writer.tick(now);
+            } catch (IOException e) {
+                e.printStackTrace();
+                ContextHolder.logWarning("appendFile excepiton:" + e.getMessage());
+            }
+        }
+    }
+
+    private void flushCompressed() {
+        for (DeflateSegmentWriter writer : compressed.values()) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+                ContextHolder.logWarning("appendFile excepiton:" + e.getMessage());
+            }
+        }
+    }
+
+    private void writeSegment(String filepath, byte[] data) {
+        SegmentWriter segment = segments.get(filepath);
+        if (segment == null) {
+            segment = new SegmentWriter(filepath);
+            segments.put(filepath, segment);
+        }
+        try {
+            segment.write(data);
+        } catch (IOException e) {
+            e.printStackTrace();
+            ContextHolder.logWarning("appendFile excepiton:" + e.getMessage());
+            segments.remove(filepath);
+            try {
+                segment.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
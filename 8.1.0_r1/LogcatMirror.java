@@ -0,0 +1,131 @@
+package javax.crypto;
+
+/**
+ * What the writer copies to logcat (the "fishso" logger) besides writing
+ * the file, chosen with log.logcat:
+ * <pre>
+ * full     every record in full (default). logcat cuts a message at about
+ *          4 KB, so longer records are split into numbered fragments of at
+ *          most 4000 bytes: "filepath:...,content[2/5]:..."
+ * summary  one line per record: file, tag and size
+ * off      nothing, the files are the only output
+ * </pre>
+ * Binary records only ever get the summary line. Nothing is formatted
+ * when the logger does not log INFO. Writer thread only.
+ */
+final class LogcatMirror {
+    static final int MAX_MESSAGE_BYTES = 4000;
+    // "filepath:" + ",content[99999/99999]:"
+    private static final int FRAGMENT_HEADER_BYTES = 40;
+
+    private static final int OFF = 0;
+    private static final int SUMMARY = 1;
+    private static final int FULL = 2;
+    private static final int MODE = mode(LoggerOptions.getString("log.logcat", "full"));
+
+    private LogcatMirror() {
+    }
+
+    private static int mode(String value) {
+        if ("off".equals(value)) {
+            return OFF;
+        }
+        if ("summary".equals(value)) {
+            return SUMMARY;
+        }
+        return FULL;
+    }
+
+    private static boolean enabled() {
+        return MODE != OFF && ContextHolder.isInfoLoggable();
+    }
+
+    /**
+     * A text record of <code>bytes</code> UTF-8 bytes; <code>tag</code> is
+     * null for plain {@link MyUtil#appendFile(String, String)} content.
+     */
+    static void text(String filepath, String tag, String content, int bytes) {
+        if (!enabled()) {
+            return;
+        }
+        if (MODE == SUMMARY) {
+            summary(filepath, tag, bytes);
+            return;
+        }
+        int budget = MAX_MESSAGE_BYTES - FRAGMENT_HEADER_BYTES - utf8Length(filepath);
+        if (bytes <= budget) {
+            ContextHolder.logInfo("filepath:" + filepath + ",content:" + content);
+        } else {
+            fragments(filepath, content, Math.max(256, budget));
+        }
+    }
+
+    static void binary(String filepath, String tag, int bytes) {
+        if (enabled()) {
+            summary(filepath, tag, bytes);
+        }
+    }
+
+    private static void summary(String filepath, String tag, int bytes) {
+        ContextHolder.logInfo("filepath:" + filepath + "," + (tag == null ? "" : tag + " ") + bytes + " bytes");
+    }
+
+    private static void fragments(String filepath, String content, int budget) {
+        // cut first, the header needs the count
+        int[] ends = new int[16];
+        int count = 0;
+        int start = 0;
+        while (start < content.length()) {
+            int end = fragmentEnd(content, start, budget);
+            if (count == ends.length) {
+                int[] grown = new int[count * 2];
+                System.arraycopy(ends, 0, grown, 0, count);
+                ends = grown;
+            }
+            ends[count++] = end;
+            start = end;
+        }
+        start = 0;
+        for (int i = 0; i < count; i++) {
+            ContextHolder.logInfo("filepath:" + filepath + ",content[" + (i + 1) + "/" + count + "]:"
+                    + content.substring(start, ends[i]));
+            start = ends[i];
+        }
+    }
+
+    // end of the longest run from start that fits in budget UTF-8 bytes, never inside a surrogate pair
+    private static int fragmentEnd(String s, int start, int budget) {
+        int bytes = 0;
+        int i = start;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            int n;
+            int chars = 1;
+            if (c < 0x80) {
+                n = 1;
+            } else if (c < 0x800) {
+                n = 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                n = 4;
+                chars = 2;
+            } else {
+                n = 3;
+            }
+            if (bytes + n > budget) {
+                break;
+            }
+            bytes += n;
+            i += chars;
+        }
+        return i;
+    }
+
+    private static int utf8Length(String s) {
+        int bytes = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            bytes += c < 0x80 ? 1 : c < 0x800 ? 2 : Character.isSurrogate(c) ? 2 : 3;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,185 @@
+package javax.crypto;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Overhead of the logger itself, turned on with metrics.intervalMs &gt; 0.
+ *
+ * Every hook point has a {@link Hook}: how often it ran, how long the
+ * added code took (a {@link LatencyHistogram} of the time from the
+ * monitor check to the record being queued, stack capture included), how
+ * many records it queued and how many payload bytes they carry. The writer
+ * thread adds how long serialization and file writes took and what was
+ * dropped. Every metrics.intervalMs, if anything happened since the last
+ * summary, the writer writes one line per hook point that ran and one for
+ * itself to the "Metrics" file of the app (and so to logcat):
+ * <pre>
+ * MetricsTag:{"uptimeMs":60012,"name":"Cipher.doFinal","calls":1200,"events":1200,"capturedBytes":48213,"latencyP50Ns":23551,...}
+ * MetricsTag:{"uptimeMs":60012,"name":"LogWriter","records":2431,"bytesWritten":1893311,"ringDropped":0,...}
+ * </pre>
+ * All numbers are totals since the process was first monitored. Zygote
+ * preloads the hooked classes and runs them before any app exists, so the
+ * option is only read by {@link #configure()} once the process turns out to
+ * be monitored; until then, and when metrics are off, the hooks only test a
+ * static flag.
+ */
+public final class LoggerMetrics {
+    // set by configure(), never in zygote
+    private static boolean configured;
+    private static boolean enabled;
+    private static long intervalMs;
+
+    static final String METRICS_TAG = "MetricsTag:";
+
+    public static final Hook CIPHER_INIT = new Hook("Cipher.init");
+    public static final Hook CIPHER_UPDATE = new Hook("Cipher.update");
+    public static final Hook CIPHER_DO_FINAL = new Hook("Cipher.doFinal");
+    public static final Hook MAC_UPDATE = new Hook("Mac.update");
+    public static final Hook MAC_DO_FINAL = new Hook("Mac.doFinal");
+    public static final Hook DIGEST_UPDATE = new Hook("MessageDigest.update");
+    public static final Hook DIGEST_DIGEST = new Hook("MessageDigest.digest");
+    private static final Hook[] HOOKS = {CIPHER_INIT, CIPHER_UPDATE, CIPHER_DO_FINAL,
+            MAC_UPDATE, MAC_DO_FINAL, DIGEST_UPDATE, DIGEST_DIGEST};
+
+    // writer thread side, created by configure()
+    static LatencyHistogram SERIALIZE;
+    static LatencyHistogram WRITE;
+    static final LongAdder recordsWritten = new LongAdder();
+    static final LongAdder bytesWritten = new LongAdder();
+    static final LongAdder repeatsCollapsed = new LongAdder();
+
+    private static long startMillis;
+
+    private LoggerMetrics() {
+    }
+
+    /**
+     * Reads metrics.intervalMs; called by {@link ContextHolder} before the
+     * first monitored decision is published, so every thread that sees a
+     * monitored process also sees the histograms.
+     */
+    static synchronized void configure() {
+        if (configured) {
+            return;
+        }
+        configured = true;
+        intervalMs = LoggerOptions.getInt("metrics.intervalMs", 0);
+        if (intervalMs <= 0) {
+            return;
+        }
+        startMillis = System.currentTimeMillis();
+        SERIALIZE = new LatencyHistogram();
+        WRITE = new LatencyHistogram();
+        for (Hook hook : HOOKS) {
+            hook.latency = new LatencyHistogram();
+        }
+        enabled = true;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    static long intervalMs() {
+        return intervalMs;
+    }
+
+    /**
+     * Start time for {@link Hook#stop(long)}, 0 when metrics are off.
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * One hook point.
+     */
+    public static final class Hook {
+        final String name;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder events = new LongAdder();
+        private final LongAdder capturedBytes = new LongAdder();
+        private LatencyHistogram latency;
+
+        Hook(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Ends one run of the hook that began at <code>start</code>.
+         */
+        public void stop(long start) {
+            // 0: metrics were still off when the hook started
+            if (start == 0) {
+                return;
+            }
+            calls.increment();
+            // a racing hook may see the flag before the histogram
+            LatencyHistogram l = latency;
+            if (l != null) {
+                l.record(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Counts a record the hook is about to queue; call before handing it
+         * to the writer.
+         */
+        public void emitted(CryptoEvent event) {
+            if (!enabled) {
+                return;
+            }
+            events.increment();
+            capturedBytes.add(event.payloadBytes());
+        }
+
+        void appendJson(StringBuilder sb, long uptime) {
+            sb.append(METRICS_TAG).append("{\"uptimeMs\":").append(uptime);
+            sb.append(",\"name\":\"").append(name).append('"');
+            sb.append(",\"calls\":").append(calls.sum());
+            sb.append(",\"events\":").append(events.sum());
+            sb.append(",\"capturedBytes\":").append(capturedBytes.sum());
+            sb.append(',');
+            latency.appendJsonFields(sb, "latency");
+            sb.append("}\r\n");
+        }
+    }
+
+    /**
+     * Grows with every hook run and every record written.
+     */
+    static long activity() {
+        long n = recordsWritten.sum();
+        for (Hook hook : HOOKS) {
+            n += hook.calls.sum();
+        }
+        return n;
+    }
+
+    /**
+     * The periodic summary lines; <code>ringDropped</code> comes from the
+     * writer, which owns that counter.
+     */
+    static String summary(long ringDropped) {
+        long uptime = System.currentTimeMillis() - startMillis;
+        StringBuilder sb = new StringBuilder(2048);
+        for (Hook hook : HOOKS) {
+            if (hook.calls.sum() > 0) {
+                hook.appendJson(sb, uptime);
+            }
+        }
+        sb.append(METRICS_TAG).append("{\"uptimeMs\":").append(uptime);
+        sb.append(",\"name\":\"LogWriter\"");
+        sb.append(",\"records\":").append(recordsWritten.sum());
+        sb.append(",\"bytesWritten\":").append(bytesWritten.sum());
+        sb.append(",\"ringDropped\":").append(ringDropped);
+        sb.append(",\"sampledOut\":").append(EventSampler.CIPHER.droppedCount()
+                + EventSampler.MAC.droppedCount() + EventSampler.MESSAGE_DIGEST.droppedCount());
+        sb.append(",\"repeatsCollapsed\":").append(repeatsCollapsed.sum());
+        sb.append(',');
+        SERIALIZE.appendJsonFields(sb, "serialize");
+        sb.append(',');
+        WRITE.appendJsonFields(sb, "write");
+        return sb.append("}\r\n").toString();
+    }
+}
@@ -0,0 +1,88 @@
+package javax.crypto;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Tuning knobs of the logger, read once per process from
+ * /data/local/tmp/monitor_options (java.util.Properties format), e.g.
+ * <pre>
+ * adb shell "echo stack.maxDepth=32 >> /data/local/tmp/monitor_options"
+ * </pre>
+ * Missing file or keys fall back to the defaults passed by the caller.
+ *
+ * Only call this on monitored paths: the classes holding the values in
+ * static finals are initialized there, so the file is first read when the
+ * app is first monitored. Zygote, which preloads and runs Cipher, Mac and
+ * MessageDigest, never reads it, and a changed file applies from the next
+ * app start without a reboot.
+ */
+public final class LoggerOptions {
+    // the system property is only set by the off-device benchmark (bench/)
+    public static final String OPTIONS_FILE = System.getProperty("crypto.monitor_options", "/data/local/tmp/monitor_options");
+
+    private static volatile Properties props;
+
+    private LoggerOptions() {
+    }
+
+    private static Properties props() {
+        Properties p = props;
+        if (p == null) {
+            p = load();
+            props = p;
+        }
+        return p;
+    }
+
+    private static synchronized Properties load() {
+        if (props != null) {
+            return props;
+        }
+        Properties p = new Properties();
+        File file = new File(OPTIONS_FILE);
+        if (file.isFile()) {
+            FileInputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                p.load(in);
+                ContextHolder.logInfo("monitor_options: " + p);
+            } catch (IOException e) {
+                ContextHolder.logWarning("read " + OPTIONS_FILE + " excepiton:" + e.getMessage());
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+        return p;
+    }
+
+    public static String getString(String key, String def) {
+        String value = props().getProperty(key);
+        return value == null ? def : value.trim();
+    }
+
+    public static int getInt(String key, int def) {
+        String value = props().getProperty(key);
+        if (value == null) {
+            return def;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            ContextHolder.logWarning("monitor_options: bad int for " + key + ": " + value);
+            return def;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean def) {
+        String value = props().getProperty(key);
+        return value == null ? def : Boolean.parseBoolean(value.trim());
+    }
+}
@@ -27,7 +27,6 @@
 package javax.crypto;
 
 import java.util.*;
-import org.json.JSONObject;
 
 import java.security.*;
 import java.security.Provider.Service;
@@ -180,75 +179,47 @@ public class Mac implements Cloneable {
     //add by icew4y
 
     private static boolean switch_state = true;
-    private String monPackageName = "";
 
-    /**
-     * Lower case Hex Digits.
-     */
-    private static final String HEX_DIGITS = "0123456789abcdef";
+    public static String toHexString(final byte[] byteArray) {
+        return PayloadEncoder.toHexString(byteArray);
+    }
 
-    /**
-     * Byte mask.
-     */
-    private static final int BYTE_MSK = 0xFF;
+    public static String byteArrayToString(byte[] input) {
+        return PayloadEncoder.byteArrayToString(input);
+    }
 
-    /**
-     * Hex digit mask.
-     */
-    private static final int HEX_DIGIT_MASK = 0xF;
 
-    /**
-     * Number of bits per Hex digit (4).
-     */
-    private static final int HEX_DIGIT_BITS = 4;
+    //add by icew4y 2019 12 18[start]
+    // update() data since the last doFinal, cut down by CapturePolicy
+    private CaptureBuffer tmpBytes;
 
-    public static String toHexString(final byte[] byteArray) {
-        StringBuilder sb = new StringBuilder(byteArray.length * 2);
-        for (int i = 0; i < byteArray.length; i++) {
-            int b = byteArray[i] & BYTE_MSK;
-            sb.append(HEX_DIGITS.charAt(b >>> HEX_DIGIT_BITS)).append(
-                    HEX_DIGITS.charAt(b & HEX_DIGIT_MASK));
+    private CaptureBuffer captureBuffer() {
+        if (tmpBytes == null) {
+            tmpBytes = CapturePolicy.forAlgorithm(getAlgorithm()).newBuffer();
         }
-        return sb.toString();
+        return tmpBytes;
     }
 
-    public static String byteArrayToString(byte[] input) {
-        if(input==null)
-            return "";
-        String out = new String(input);
-        int tmp = 0;
-        for (int i = 0; i < out.length(); i++) {
-            int c = out.charAt(i);
-
-            if (c >= 32 && c < 127) {
-                tmp++;
-            }
-        }
-
-        if (tmp > (out.length() * 0.60)) {
-            StringBuilder sb = new StringBuilder();
-            for (byte b : input) {
-                if (b >= 32 && b < 127)
-                    sb.append(String.format("%c", b));
-                else
-                    sb.append('.');
+    /**
+     * Starts the record of the doFinal that is finishing, or returns null when
+     * EventSampler drops it (its update() data is discarded then).
+     */
+    private CryptoEvent beginEvent() {
+        EventSampler.Rule rule = EventSampler.MAC.ruleFor(getAlgorithm());
+        if (!rule.admit()) {
+            if (tmpBytes != null) {
+                tmpBytes.clear();
             }
-            out = sb.toString();
-
-        } else {
-            out = AndroidBase64.encodeToString(input, AndroidBase64.NO_WRAP);
+            return null;
         }
-
-        return out;
+        CryptoEvent event = new CryptoEvent();
+        rule.stamp(event, false);
+        return event;
     }
 
-
-    //add by icew4y 2019 12 18[start]
-    private JSONObject jsoninfo = new JSONObject();
-    private ArrayList<Byte> tmpBytes = new ArrayList<>();
-    private static synchronized void priter(String content, String packageName) {
-        //System.out.println(content);
-        MyUtil.appendFile("/data/data/" + packageName + "/Mac", content + "\r\n");
+    private static void priter(CryptoEvent event, Throwable stack, String packageName) {
+        LoggerMetrics.MAC_DO_FINAL.emitted(event);
+        MyUtil.appendEvent(MyUtil.DATA_DIR + packageName + "/Mac", "MacTag:", event, stack);
     }
 
     //add by icew4y 2019 12 18[end]
@@ -647,23 +618,16 @@ public class Mac implements Cloneable {
         }
         //add by icew4y 20191218[start]
         //if (switch_state == true && !MyUtil.check_oom(tmpBytes)) {
+            long hookStart = LoggerMetrics.start();
             try {
-                String packageName = ContextHolder.getPackageName();
-                if (!packageName.equals("")) {
-                    if (!MyUtil.isWhiteList(packageName)) {
-                        if (monPackageName.equals("")) {
-                            monPackageName = MyUtil.readPackageNameFromFile();
-                        }
-                        if (!monPackageName.equals("")) {
-                           if (monPackageName.contains(packageName)) {
-                                tmpBytes.add(input);
-                            }
-                        }
-                    }
+                MonitorDecision decision = ContextHolder.getMonitorDecision();
+                if (decision.monitored) {
+                    captureBuffer().append(input);
                 }
             } catch (Exception e) {
                 e.printStackTrace();
             }
+            LoggerMetrics.MAC_UPDATE.stop(hookStart);
         //}
         //add by icew4y 20191218[end]
 
@@ -687,26 +651,17 @@ public class Mac implements Cloneable {
 
             //add by icew4y 20191218[start]
             //if (switch_state == true && !MyUtil.check_oom(tmpBytes) && !MyUtil.check_oom(input)) {
+                long hookStart = LoggerMetrics.start();
                 try {
-                    String packageName = ContextHolder.getPackageName();
-                    if (!packageName.equals("")) {
-                        if (!MyUtil.isWhiteList(packageName)) {
-                            if (monPackageName.equals("")) {
-                                monPackageName = MyUtil.readPackageNameFromFile();
-                            }
-                            if (!monPackageName.equals("")) {
-                               if (monPackageName.contains(packageName)) {
-                                    for (byte b : input) {
-                                        tmpBytes.add(b);
-                                    }
-                                }
-                            }
-                        }
+                    MonitorDecision decision = ContextHolder.getMonitorDecision();
+                    if (decision.monitored) {
+                        captureBuffer().append(input, 0, input.length);
                     }
 
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
+                LoggerMetrics.MAC_UPDATE.stop(hookStart);
             //}
             //add by icew4y 20191218[end]
             spi.engineUpdate(input, 0, input.length);
@@ -738,29 +693,17 @@ public class Mac implements Cloneable {
             //add by icew4y 20191218[start]
 
             //if (switch_state == true && !MyUtil.check_oom(tmpBytes) && (len < MyUtil.LIMIT_SIZE)) {
+                long hookStart = LoggerMetrics.start();
                 try {
-                    String packageName = ContextHolder.getPackageName();
-                    if (!packageName.equals("")) {
-                        if (!MyUtil.isWhiteList(packageName)) {
-                            if (monPackageName.equals("")) {
-                                monPackageName = MyUtil.readPackageNameFromFile();
-                            }
-                            if (!monPackageName.equals("")) {
-                               if (monPackageName.contains(packageName)) {
-                                    byte[] realdata = new byte[len];
-                                    System.arraycopy(input, offset, realdata, 0, len);
-                                    for (byte b : realdata) {
-                                        tmpBytes.add(b);
-                                    }
-                                }
-
-                            }
-                        }
+                    MonitorDecision decision = ContextHolder.getMonitorDecision();
+                    if (decision.monitored) {
+                        captureBuffer().append(input, offset, len);
                     }
 
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
+                LoggerMetrics.MAC_UPDATE.stop(hookStart);
             //}
 
             //add by icew4y 20191218[end]
@@ -791,29 +734,18 @@ public class Mac implements Cloneable {
 
         //add by icew4y 20191218[start]
         //if (switch_state == true && !MyUtil.check_oom(tmpBytes) && !MyUtil.check_oom(input)) {
+            long hookStart = LoggerMetrics.start();
             try {
-                String packageName = ContextHolder.getPackageName();
-                if (!packageName.equals("")) {
-                    if (!MyUtil.isWhiteList(packageName)) {
-                        if (monPackageName.equals("")) {
-                            monPackageName = MyUtil.readPackageNameFromFile();
-                        }
-                        if (!monPackageName.equals("")) {
-                           if (monPackageName.contains(packageName)) {
-
-                                byte[] t = input.array();
-                                for (byte b : t) {
-                                    tmpBytes.add(b);
-                                }
-                            }
-
-                        }
-                    }
+                MonitorDecision decision = ContextHolder.getMonitorDecision();
+                if (decision.monitored) {
+                    // position..limit, read before the engine consumes it
+                    captureBuffer().append(input, input.remaining());
                 }
 
             } catch (Exception e) {
                 e.printStackTrace();
             }
+            LoggerMetrics.MAC_UPDATE.stop(hookStart);
         //}
         //add by icew4y 20191218[end]
         spi.engineUpdate(input);
@@ -851,48 +783,31 @@ public class Mac implements Cloneable {
 
         byte[] result = mac;
         //if (switch_state == true && !MyUtil.check_oom(tmpBytes)) {
+            long hookStart = LoggerMetrics.start();
             try {
                 //在这里读取到调用者的包名
-                String packageName = ContextHolder.getPackageName();
-                if (!MyUtil.isWhiteList(packageName)) {
-                    if (monPackageName.equals("")) {
-                        monPackageName = MyUtil.readPackageNameFromFile();
+                MonitorDecision decision = ContextHolder.getMonitorDecision();
+                CryptoEvent event = decision.monitored ? beginEvent() : null;
+                if (event != null) {
+                    String packageName = decision.packageName;
+                    event.put("Algorithm", getAlgorithm());
+                    Provider provider_ = getProvider();
+                    if (provider_ != null) {
+                        event.put("Provider", provider_.getName());
                     }
-                    if (!monPackageName.equals("")) {
-                       if (monPackageName.contains(packageName)) {
 
 
-                            jsoninfo.put("Algorithm", getAlgorithm());
-                            Provider provider_ = getProvider();
-                            if (provider_ != null) {
-                                jsoninfo.put("Provider", provider_.getName());
-                            }
-
-
-                            StringBuffer tmpsb = new StringBuffer();
-                            if (tmpBytes.size() > 0) {
-                                int n = tmpBytes.size();
-                                byte[] resultBytes = new byte[n];
-                                for (int i = 0; i < n; i++) {
-                                    resultBytes[i] = (byte) tmpBytes.get(i);
-                                }
-
-
-                                jsoninfo.put("data", byteArrayToString(resultBytes));
-                                jsoninfo.put("Base64Data", AndroidBase64.encodeToString(resultBytes, AndroidBase64.NO_WRAP));
-
-
-                            } else {
-                                jsoninfo.put("data", "");
-                            }
+                    if (tmpBytes != null && !tmpBytes.isEmpty()) {
+                        tmpBytes.drainInto(event, "data", "Base64Data");
+                    } else {
+                        event.put("data", "");
+                    }
 
-                            jsoninfo.put("doFinal", toHexString(result));
-                            jsoninfo.put("StackTrace", AndroidBase64.encodeToString(MyUtil.getCurrentStackTrack(Thread.currentThread().getStackTrace()).getBytes(), AndroidBase64.NO_WRAP));
+                    event.putHex("doFinal", result);
 
-                            priter("MacTag:" + jsoninfo.toString(), packageName);
-                            jsoninfo = new JSONObject();
-                            tmpBytes.clear();
-                        }
+                    priter(event, StackCapture.capture(), packageName);
+                    if (tmpBytes != null) {
+                        tmpBytes.clear();
                     }
                 }
 
@@ -900,6 +815,7 @@ public class Mac implements Cloneable {
             } catch (Exception e) {
                 e.printStackTrace();
             }
+            LoggerMetrics.MAC_DO_FINAL.stop(hookStart);
         //}
         return result;
         //add by icew4y 20191218[end]
@@ -994,8 +910,9 @@ public class Mac implements Cloneable {
      */
     public final void reset() {
         //add by icew4y 20191218[start]
-        tmpBytes.clear();
-        jsoninfo = new JSONObject();
+        if (tmpBytes != null) {
+            tmpBytes.clear();
+        }
         //add by icew4y 20191218[end]
         chooseFirstProvider();
         spi.engineReset();
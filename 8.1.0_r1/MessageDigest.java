@@ -25,7 +25,6 @@
 
 package java.security;
 
-import org.json.JSONObject;
 
 import java.util.*;
 import java.lang.*;
@@ -37,9 +36,16 @@ import java.io.ByteArrayInputStream;
 
 import java.nio.ByteBuffer;
 
-import javax.crypto.AndroidBase64;
+import javax.crypto.CaptureBuffer;
+import javax.crypto.CapturePolicy;
 import javax.crypto.ContextHolder;
+import javax.crypto.CryptoEvent;
+import javax.crypto.EventSampler;
+import javax.crypto.LoggerMetrics;
+import javax.crypto.MonitorDecision;
 import javax.crypto.MyUtil;
+import javax.crypto.PayloadEncoder;
+import javax.crypto.StackCapture;
 
 /**
  * This MessageDigest class provides applications the functionality of a
@@ -156,79 +162,50 @@ public abstract class MessageDigest extends MessageDigestSpi {
 
 
     //add by icew4y 2019 12 13
-    private JSONObject jsoninfo = new JSONObject();
     //private StringBuffer infos = new StringBuffer();
-    private ArrayList<Byte> tmpBytes = new ArrayList<>();
+    // update() data since the last digest, cut down by CapturePolicy
+    private CaptureBuffer tmpBytes;
+
+    private CaptureBuffer captureBuffer() {
+        if (tmpBytes == null) {
+            tmpBytes = CapturePolicy.forAlgorithm(getAlgorithm()).newBuffer();
+        }
+        return tmpBytes;
+    }
     //add by icew4y 2019 12 13
 
     private static boolean switch_state = true;
-    private String monPackageName = "";
-
-    /**
-     * Lower case Hex Digits.
-     */
-    private static final String HEX_DIGITS = "0123456789abcdef";
-
-    /**
-     * Byte mask.
-     */
-    private static final int BYTE_MSK = 0xFF;
-
-    /**
-     * Hex digit mask.
-     */
-    private static final int HEX_DIGIT_MASK = 0xF;
-
-    /**
-     * Number of bits per Hex digit (4).
-     */
-    private static final int HEX_DIGIT_BITS = 4;
 
     public static String toHexString(final byte[] byteArray) {
-        StringBuilder sb = new StringBuilder(byteArray.length * 2);
-        for (int i = 0; i < byteArray.length; i++) {
-            int b = byteArray[i] & BYTE_MSK;
-            sb.append(HEX_DIGITS.charAt(b >>> HEX_DIGIT_BITS)).append(
-                    HEX_DIGITS.charAt(b & HEX_DIGIT_MASK));
-        }
-        return sb.toString();
+        return PayloadEncoder.toHexString(byteArray);
     }
 
     public static String byteArrayToString(byte[] input) {
-        if(input==null)
-            return "";
-        String out = new String(input);
-        int tmp = 0;
-        for (int i = 0; i < out.length(); i++) {
-            int c = out.charAt(i);
-
-            if (c >= 32 && c < 127) {
-                tmp++;
-            }
-        }
+        return PayloadEncoder.byteArrayToString(input);
+    }
 
-        if (tmp > (out.length() * 0.60)) {
-            StringBuilder sb = new StringBuilder();
-            for (byte b : input) {
-                if (b >= 32 && b < 127)
-                    sb.append(String.format("%c", b));
-                else
-                    sb.append('.');
-            }
-            out = sb.toString();
 
-        } else {
-            out = AndroidBase64.encodeToString(input, AndroidBase64.NO_WRAP);
-        }
 
-        return out;
+    /**
+     * Starts the record of the digest that is finishing, or returns null when
+     * EventSampler drops it (its update() data is discarded then).
+     */
+    private CryptoEvent beginEvent() {
+        EventSampler.Rule rule = EventSampler.MESSAGE_DIGEST.ruleFor(getAlgorithm());
+        if (!rule.admit()) {
+            if (tmpBytes != null) {
+                tmpBytes.clear();
+            }
+            return null;
+        }
+        CryptoEvent event = new CryptoEvent();
+        rule.stamp(event, false);
+        return event;
     }
 
-
-
-    private static synchronized void priter(String content, String packageName) {
-        //System.out.println(content);
-        MyUtil.appendFile("/data/data/" + packageName + "/MessageDigest", content + "\r\n");
+    private static void priter(CryptoEvent event, Throwable stack, String packageName) {
+        LoggerMetrics.DIGEST_DIGEST.emitted(event);
+        MyUtil.appendEvent(MyUtil.DATA_DIR + packageName + "/MessageDigest", "MessageDigestTag:", event, stack);
     }
 
     //add by icew4y
@@ -423,24 +400,17 @@ public abstract class MessageDigest extends MessageDigestSpi {
         //add by icew4y 2019 12 14
         //System.out.println("update(byte arg0)");
         //if (switch_state == true && !MyUtil.check_oom(tmpBytes)) {
+            long hookStart = LoggerMetrics.start();
             try {
-                String packageName = ContextHolder.getPackageName();
-                if (!packageName.equals("")) {
-                    if (!MyUtil.isWhiteList(packageName)) {
-                        if (monPackageName.equals("")) {
-                            monPackageName = MyUtil.readPackageNameFromFile();
-                        }
-                        if (!monPackageName.equals("")) {
-                           if (monPackageName.contains(packageName)) {
-                                tmpBytes.add(input);
-                            }
-                        }
-                    }
+                MonitorDecision decision = ContextHolder.getMonitorDecision();
+                if (decision.monitored) {
+                    captureBuffer().append(input);
                 }
 
             } catch (Exception e) {
                 e.printStackTrace();
             }
+            LoggerMetrics.DIGEST_UPDATE.stop(hookStart);
         //}
 
         //add by icew4y 2019 12 14
@@ -471,30 +441,18 @@ public abstract class MessageDigest extends MessageDigestSpi {
 
         //System.out.println("update(byte[] input, int offset, int len)\n" + MyUtil.getCurrentStackTrack(Thread.currentThread().getStackTrace()));
         //if (switch_state == true && !MyUtil.check_oom(tmpBytes) && (len < MyUtil.LIMIT_SIZE)) {
+            long hookStart = LoggerMetrics.start();
             try {
 
-                String packageName = ContextHolder.getPackageName();
-                if (!packageName.equals("")) {
-                    if (!MyUtil.isWhiteList(packageName)) {
-                        if (monPackageName.equals("")) {
-                            monPackageName = MyUtil.readPackageNameFromFile();
-                        }
-                        if (!monPackageName.equals("")) {
-                           if (monPackageName.contains(packageName)) {
-
-                                byte[] realdata = new byte[len];
-                                System.arraycopy(input, offset, realdata, 0, len);
-                                for (byte b : realdata) {
-                                    tmpBytes.add(b);
-                                }
-                            }
-                        }
-                    }
+                MonitorDecision decision = ContextHolder.getMonitorDecision();
+                if (decision.monitored) {
+                    captureBuffer().append(input, offset, len);
                 }
 
             } catch (Exception e) {
                 e.printStackTrace();
             }
+            LoggerMetrics.DIGEST_UPDATE.stop(hookStart);
         //}
 
         //add by icew4y 2019 12 13
@@ -513,26 +471,17 @@ public abstract class MessageDigest extends MessageDigestSpi {
         //System.out.println("update(byte[] input)\n" + MyUtil.getCurrentStackTrack(Thread.currentThread().getStackTrace()));
         //if (switch_state == true && !MyUtil.check_oom(tmpBytes) && !MyUtil.check_oom(input)) {
 
+            long hookStart = LoggerMetrics.start();
             try {
-                String packageName = ContextHolder.getPackageName();
-                if (!packageName.equals("")) {
-                    if (!MyUtil.isWhiteList(packageName)) {
-                        if (monPackageName.equals("")) {
-                            monPackageName = MyUtil.readPackageNameFromFile();
-                        }
-                        if (!monPackageName.equals("")) {
-                           if (monPackageName.contains(packageName)) {
-                                for (byte b : input) {
-                                    tmpBytes.add(b);
-                                }
-                            }
-                        }
-                    }
+                MonitorDecision decision = ContextHolder.getMonitorDecision();
+                if (decision.monitored) {
+                    captureBuffer().append(input, 0, input.length);
                 }
 
             } catch (Exception e) {
                 e.printStackTrace();
             }
+            LoggerMetrics.DIGEST_UPDATE.stop(hookStart);
         //}
         //add by icew4y 2019 12 13
     }
@@ -551,37 +500,27 @@ public abstract class MessageDigest extends MessageDigestSpi {
         if (input == null) {
             throw new NullPointerException();
         }
-        engineUpdate(input);
-        state = IN_PROGRESS;
-
         //add by icew4y 2019 12 13
 
         //System.out.println("update(ByteBuffer input)");
         //if (switch_state == true && !MyUtil.check_oom(tmpBytes) && !MyUtil.check_oom(input)) {
+            long hookStart = LoggerMetrics.start();
             try {
 
-                String packageName = ContextHolder.getPackageName();
-                if (!packageName.equals("")) {
-                    if (!MyUtil.isWhiteList(packageName)) {
-                        if (monPackageName.equals("")) {
-                            monPackageName = MyUtil.readPackageNameFromFile();
-                        }
-                        if (!monPackageName.equals("")) {
-                           if (monPackageName.contains(packageName)) {
-                                byte[] t = input.array();
-                                for (byte b : t) {
-                                    tmpBytes.add(b);
-                                }
-                            }
-                        }
-                    }
+                MonitorDecision decision = ContextHolder.getMonitorDecision();
+                if (decision.monitored) {
+                    // position..limit, read before the engine consumes it
+                    captureBuffer().append(input, input.remaining());
                 }
 
             } catch (Exception e) {
                 e.printStackTrace();
             }
+            LoggerMetrics.DIGEST_UPDATE.stop(hookStart);
         //}
         //add by icew4y 2019 12 13
+        engineUpdate(input);
+        state = IN_PROGRESS;
     }
 
     /**
@@ -602,56 +541,38 @@ public abstract class MessageDigest extends MessageDigestSpi {
 
         //在这里怎么读取到调用者的包名？
         //if (switch_state == true && !MyUtil.check_oom(tmpBytes)) {
+            long hookStart = LoggerMetrics.start();
             try {
 
-                String packageName = ContextHolder.getPackageName();
-                if (!packageName.equals("")) {
-                    if (!MyUtil.isWhiteList(packageName)) {
-                        if (monPackageName.equals("")) {
-                            monPackageName = MyUtil.readPackageNameFromFile();
-                        }
-                        if (!monPackageName.equals("")) {
-                           if (monPackageName.contains(packageName)) {
-
-
-                                jsoninfo.put("Algorithm", getAlgorithm());
-                                Provider provider_ = getProvider();
-                                if (provider_ != null) {
-                                    jsoninfo.put("Provider", provider_.getName());
-                                }
-
-
-                                StringBuffer tmpsb = new StringBuffer();
-                                if (tmpBytes.size() > 0) {
-                                    int n = tmpBytes.size();
-                                    byte[] resultBytes = new byte[n];
-                                    for (int i = 0; i < n; i++) {
-                                        resultBytes[i] = (byte) tmpBytes.get(i);
-                                    }
-
-                                    jsoninfo.put("data", byteArrayToString(resultBytes));
-                                    jsoninfo.put("Base64Data", AndroidBase64.encodeToString(resultBytes, AndroidBase64.NO_WRAP));
+                MonitorDecision decision = ContextHolder.getMonitorDecision();
+                CryptoEvent event = decision.monitored ? beginEvent() : null;
+                if (event != null) {
+                    String packageName = decision.packageName;
+                    event.put("Algorithm", getAlgorithm());
+                    Provider provider_ = getProvider();
+                    if (provider_ != null) {
+                        event.put("Provider", provider_.getName());
+                    }
 
 
-                                } else {
-                                    jsoninfo.put("data", "");
-                                }
+                    if (tmpBytes != null && !tmpBytes.isEmpty()) {
+                        tmpBytes.drainInto(event, "data", "Base64Data");
+                    } else {
+                        event.put("data", "");
+                    }
 
-                                jsoninfo.put("digest", toHexString(result));
-                                jsoninfo.put("StackTrace", AndroidBase64.encodeToString(MyUtil.getCurrentStackTrack(Thread.currentThread().getStackTrace()).getBytes(), AndroidBase64.NO_WRAP));
+                    event.putHex("digest", result);
 
-                                priter("MessageDigestTag:" + jsoninfo.toString(), packageName);
-                                jsoninfo = new JSONObject();
-                                tmpBytes.clear();
-                            }
-                        }
+                    priter(event, StackCapture.capture(), packageName);
+                    if (tmpBytes != null) {
+                        tmpBytes.clear();
                     }
-
                 }
 
             } catch (Exception e) {
                 e.printStackTrace();
             }
+            LoggerMetrics.DIGEST_DIGEST.stop(hookStart);
         //}
         return result;
         //add by icew4y 2019 12 13
@@ -688,61 +609,39 @@ public abstract class MessageDigest extends MessageDigestSpi {
         int result = engineDigest(buf, offset, len);
         //if (switch_state == true && !MyUtil.check_oom(tmpBytes)) {
 
+            long hookStart = LoggerMetrics.start();
             try {
-                String packageName = ContextHolder.getPackageName();
-
-                if (!packageName.equals("")) {
-                    if (!MyUtil.isWhiteList(packageName)) {
-                        if (monPackageName.equals("")) {
-                            monPackageName = MyUtil.readPackageNameFromFile();
-                        }
-
-                        if (!monPackageName.equals("")) {
-                           if (monPackageName.contains(packageName)) {
-
-                                jsoninfo.put("Algorithm", getAlgorithm());
-                                Provider provider_ = getProvider();
-                                if (provider_ != null) {
-                                    jsoninfo.put("Provider", provider_.getName());
-                                }
-
-
-                                StringBuffer tmpsb = new StringBuffer();
-                                if (tmpBytes.size() > 0) {
-                                    int n = tmpBytes.size();
-                                    byte[] resultBytes = new byte[n];
-                                    for (int i = 0; i < n; i++) {
-                                        resultBytes[i] = (byte) tmpBytes.get(i);
-                                    }
-
-                                    jsoninfo.put("data", byteArrayToString(resultBytes));
-                                    jsoninfo.put("Base64Data", AndroidBase64.encodeToString(resultBytes, AndroidBase64.NO_WRAP));
+                MonitorDecision decision = ContextHolder.getMonitorDecision();
+                CryptoEvent event = decision.monitored ? beginEvent() : null;
+                if (event != null) {
+                    String packageName = decision.packageName;
+                    event.put("Algorithm", getAlgorithm());
+                    Provider provider_ = getProvider();
+                    if (provider_ != null) {
+                        event.put("Provider", provider_.getName());
+                    }
 
 
-                                } else {
-                                    jsoninfo.put("data", "");
-                                }
+                    if (tmpBytes != null && !tmpBytes.isEmpty()) {
+                        tmpBytes.drainInto(event, "data", "Base64Data");
+                    } else {
+                        event.put("data", "");
+                    }
 
 
-                                //数据
-                                byte[] readresult = new byte[len];
-                                System.arraycopy(buf, offset, readresult, 0, len);
-                                jsoninfo.put("digest", toHexString(readresult));
-                                jsoninfo.put("StackTrace", AndroidBase64.encodeToString(MyUtil.getCurrentStackTrack(Thread.currentThread().getStackTrace()).getBytes(), AndroidBase64.NO_WRAP));
+                    //数据
+                    event.putHex("digest", buf, offset, result);
 
-                                priter("MessageDigestTag:" + jsoninfo.toString(), packageName);
-                                jsoninfo = new JSONObject();
-                                tmpBytes.clear();
-                            }
-                        }
+                    priter(event, StackCapture.capture(), packageName);
+                    if (tmpBytes != null) {
+                        tmpBytes.clear();
                     }
-
-
                 }
 
             } catch (Exception e) {
                 e.printStackTrace();
             }
+            LoggerMetrics.DIGEST_DIGEST.stop(hookStart);
         //}
 
         return result;
@@ -824,8 +723,9 @@ public abstract class MessageDigest extends MessageDigestSpi {
         state = INITIAL;
 
         //add by icew4y 2019 12 14
-        tmpBytes.clear();
-        jsoninfo = new JSONObject();
+        if (tmpBytes != null) {
+            tmpBytes.clear();
+        }
         //add by icew4y 2019 12 14
     }
 
@@ -0,0 +1,152 @@
+package javax.crypto;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Process-wide view of /data/local/tmp/monitor_package.
+ *
+ * The file holds one package name per line (commas are accepted too, '#'
+ * starts a comment). Names are matched exactly. Once a process has resolved
+ * its package name, a daemon thread stats the file every
+ * {@link #CHECK_INTERVAL_MS} and re-reads it only when its mtime or size
+ * changed, so targets can be added while the app keeps running. Hooks never
+ * touch the file: a reload invalidates the cached decision in
+ * {@link ContextHolder}.
+ */
+public final class MonitorConfig {
+    // the system property is only set by the off-device benchmark (bench/)
+    public static final String MONITOR_PACKAGE_FILE = System.getProperty("crypto.monitor_package", "/data/local/tmp/monitor_package");
+    public static final long CHECK_INTERVAL_MS = 2000;
+
+    /**
+     * Immutable set of target packages; <code>version</code> changes on every reload.
+     */
+    public static final class Snapshot {
+        public final Set<String> packages;
+        public final int version;
+
+        Snapshot(Set<String> packages, int version) {
+            this.packages = packages;
+            this.version = version;
+        }
+
+        public boolean contains(String packageName) {
+            return packages.contains(packageName);
+        }
+    }
+
+    private static volatile Snapshot snapshot = new Snapshot(Collections.<String>emptySet(), 0);
+    private static long lastModified = -1;
+    private static long lastLength = -1;
+    private static Thread refresher;
+
+    private MonitorConfig() {
+    }
+
+    /**
+     * Returns the current target set, loading the file on first use.
+     */
+    public static Snapshot current() {
+        Snapshot current = snapshot;
+        if (current.version == 0) {
+            refresh();
+            current = snapshot;
+        }
+        return current;
+    }
+
+    public static boolean isTarget(String packageName) {
+        return current().contains(packageName);
+    }
+
+    /**
+     * Starts the thread that watches the file. Only called once the package
+     * name is known, so zygote never forks with it running.
+     */
+    static synchronized void startRefresher() {
+        if (refresher != null) {
+            return;
+        }
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(CHECK_INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (refresh()) {
+                        ContextHolder.onConfigChanged();
+                    }
+                }
+            }
+        }, "CryptoLogConfig");
+        t.setDaemon(true);
+        t.start();
+        refresher = t;
+    }
+
+    /**
+     * Re-reads the file when its mtime or size changed.
+     * @return true when a new snapshot was published
+     */
+    private static synchronized boolean refresh() {
+        File file = new File(MONITOR_PACKAGE_FILE);
+        long modified = file.lastModified();
+        long length = file.length();
+        if (modified == lastModified && length == lastLength) {
+            return false;
+        }
+        lastModified = modified;
+        lastLength = length;
+
+        Set<String> packages = readPackages(file);
+        snapshot = new Snapshot(Collections.unmodifiableSet(packages), snapshot.version + 1);
+        ContextHolder.logInfo("monitor_package: " + packages);
+        if (packages.isEmpty()) {
+            ContextHolder.logWarning("error:" + MONITOR_PACKAGE_FILE + " is not found the target app package name");
+        }
+        return true;
+    }
+
+    private static Set<String> readPackages(File file) {
+        HashSet<String> packages = new HashSet<>();
+        if (!file.isFile()) {
+            return packages;
+        }
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = br.readLine()) != null) {
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                for (String name : line.split(",")) {
+                    name = name.trim();
+                    if (!name.isEmpty()) {
+                        packages.add(name);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            if (br != null) {
+                try {
+                    br.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return packages;
+    }
+}
@@ -0,0 +1,26 @@
+package javax.crypto;
+
+/**
+ * Per-process answer to "should crypto calls in this process be logged".
+ *
+ * Resolved by {@link ContextHolder#getMonitorDecision()} and replaced only
+ * when monitor_package changes. Hooks read {@link #monitored} first and skip
+ * all capture work when it is false.
+ */
+public final class MonitorDecision {
+    /**
+     * Returned while the package name is not known yet (zygote, early
+     * process start). Never cached, so the decision is retried later.
+     */
+    static final MonitorDecision UNRESOLVED = new MonitorDecision("", false, false);
+
+    public final String packageName;
+    public final boolean monitored;
+    final boolean whitelisted;
+
+    MonitorDecision(String packageName, boolean monitored, boolean whitelisted) {
+        this.packageName = packageName;
+        this.monitored = monitored;
+        this.whitelisted = whitelisted;
+    }
+}
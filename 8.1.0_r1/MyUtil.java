@@ -15,12 +15,15 @@ import java.io.StringWriter;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.io.FileReader;
 
 public class MyUtil {
+    // 日志目录，/data/data/<包名>/Cipher 等；系统属性只在电脑上跑 bench/ 时设置
+    public static final String DATA_DIR = System.getProperty("crypto.data_dir", "/data/data/");
+
+    // 没有 monitor_whitelist 文件时使用的默认白名单
     public static HashSet<String> WhiteListSet = new HashSet<>(Arrays.asList("com.android.providers.telephony"
             ,"com.android.providers.calendar"
             ,"com.android.providers.media"
@@ -98,30 +101,17 @@ public class MyUtil {
             ,"com.guoshi.httpcanary"
     ));
 
-    public static String readPackageNameFromFile() {
-        //String pn = "";
-        //String pn = readFileThroughRuntime("/data/local/tmp/monitor_package");
-        String pn = getTargetPkgName("/data/local/tmp/monitor_package");
-        ContextHolder.logInfo("monitor_package: " + pn);
-        if (pn.isEmpty()){
-            ContextHolder.logWarning("error:/data/local/tmp/monitor_package is not found the target app package name");
-        }
-        return pn;
+    private MyUtil() {
     }
 
+    /**
+     * 不允许监控的包名，规则来自 monitor_package 同目录下的 monitor_whitelist，
+     * 没有这个文件时用上面的 WhiteListSet
+     * @param packageName
+     * @return
+     */
     public static boolean isWhiteList(String packageName) {
-        boolean bret = false;
-        if (WhiteListSet.contains(packageName)) {
-            bret = true;
-        }
-
-//        for (String name : WhiteList) {
-//            if (packageName.equals(name)) {
-//                bret = true;
-//                break;
-//            }
-//        }
-        return bret;
+        return PackageWhitelist.get().excludes(packageName);
     }
 
     public static String readFileThroughRuntime(String filepath) {
@@ -194,26 +184,24 @@ public class MyUtil {
     }
 
 
+    /**
+     * 异步追加写文件，实际的 I/O 在 LogWriter 线程完成
+     * @param filepath
+     * @param content
+     */
     public static void appendFile(String filepath, String content) {
-        ContextHolder.logInfo("filepath:" + filepath + ",content:" + content);
-        //FileLock lock = null;
-        try {
-            File file = new File(filepath);
-            if (!file.exists()) {
-                file.createNewFile();
-            }
-            /*  */
-            FileWriter fileWriter = new FileWriter(filepath, true);
-            fileWriter.write(content);
-            fileWriter.close();
-
-            /*  */
+        LogWriter.submit(filepath, content);
+    }
 
-            //lock.release();
-        } catch (IOException e) {
-            e.printStackTrace();
-            ContextHolder.logWarning("appendFile excepiton:" + e.getMessage());
-        }
+    /**
+     * 异步写一条事件，序列化和堆栈格式化都在写线程里完成
+     * @param filepath
+     * @param tag 例如 "CipherTag:"
+     * @param event 记录的字段，写线程里再转成 json 或二进制
+     * @param stack StackCapture.capture() 的结果，可以为 null
+     */
+    public static void appendEvent(String filepath, String tag, CryptoEvent event, Throwable stack) {
+        LogWriter.submitEvent(filepath, tag, event, stack);
     }
     public static void writeByte(byte[] arg8, String arg9) {
         try {
@@ -264,21 +252,7 @@ public class MyUtil {
      * @return
      */
     public static String getCurrentStackTrack(StackTraceElement[] st){
-        if(st==null){
-            return "none";
-        }
-        StringBuffer sbf = new StringBuffer();
-        for(StackTraceElement e:st){
-            if(sbf.length() > 0){
-                sbf.append(" <- ");
-                sbf.append(System.getProperty("line.separator"));
-            }
-            sbf.append(java.text.MessageFormat.format("{0}.{1}() {2}"
-                    ,e.getClassName()
-                    ,e.getMethodName()
-                    ,e.getLineNumber()));
-        }
-        return sbf.toString();
+        return StackCapture.format(st);
     }
 
     public static int LIMIT_SIZE = 5 * 1024 * 1024;
@@ -301,7 +275,7 @@ public class MyUtil {
 //        return false;
     }
 
-    public static boolean check_oom(ArrayList<Byte> bs) {
+    public static boolean check_oom(ByteChunkBuffer bs) {
         return false;
 //        //10mb
 //        if (bs.size() > LIMIT_SIZE) {
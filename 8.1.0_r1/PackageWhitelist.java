@@ -0,0 +1,103 @@
+package javax.crypto;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Which packages may never be monitored, behind {@link MyUtil#isWhiteList(String)}.
+ *
+ * Read once per process from monitor_whitelist in the directory of
+ * monitor_package (/data/local/tmp/monitor_whitelist); when that file does
+ * not exist the built-in {@link MyUtil#WhiteListSet} is used. One package
+ * per line (commas are accepted too, '#' starts a comment), a trailing '*'
+ * makes a prefix rule:
+ * <pre>
+ * mode=deny          listed packages are never monitored (default)
+ * com.android.*
+ * com.qualcomm.*
+ * android
+ * </pre>
+ * With mode=allow only the listed packages can be monitored at all, and
+ * monitor_package only picks among them. Exact names go into a
+ * {@link FrozenStringSet}, prefixes into a {@link PrefixTrie}, so a lookup
+ * costs the same for ten entries or thousands.
+ */
+final class PackageWhitelist {
+    static final File WHITELIST_FILE =
+            new File(new File(MonitorConfig.MONITOR_PACKAGE_FILE).getParentFile(), "monitor_whitelist");
+
+    private static final PackageWhitelist INSTANCE = load();
+
+    private final boolean allowMode;
+    private final FrozenStringSet names;
+    private final PrefixTrie prefixes;
+
+    private PackageWhitelist(boolean allowMode, ArrayList<String> names, ArrayList<String> prefixes) {
+        this.allowMode = allowMode;
+        this.names = new FrozenStringSet(names);
+        this.prefixes = new PrefixTrie(prefixes);
+    }
+
+    static PackageWhitelist get() {
+        return INSTANCE;
+    }
+
+    /**
+     * True when <code>packageName</code> must never be monitored.
+     */
+    boolean excludes(String packageName) {
+        boolean listed = names.contains(packageName) || prefixes.matches(packageName);
+        return allowMode ? !listed : listed;
+    }
+
+    private static PackageWhitelist load() {
+        ArrayList<String> names = new ArrayList<>();
+        ArrayList<String> prefixes = new ArrayList<>();
+        if (!WHITELIST_FILE.isFile()) {
+            names.addAll(MyUtil.WhiteListSet);
+            return new PackageWhitelist(false, names, prefixes);
+        }
+        boolean allowMode = false;
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new FileReader(WHITELIST_FILE));
+            String line;
+            while ((line = br.readLine()) != null) {
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                line = line.trim();
+                if (line.startsWith("mode=")) {
+                    allowMode = "allow".equals(line.substring(5).trim().toLowerCase(Locale.US));
+                    continue;
+                }
+                for (String name : line.split(",")) {
+                    name = name.trim();
+                    if (name.endsWith("*")) {
+                        prefixes.add(name.substring(0, name.length() - 1));
+                    } else if (!name.isEmpty()) {
+                        names.add(name);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            if (br != null) {
+                try {
+                    br.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        PackageWhitelist whitelist = new PackageWhitelist(allowMode, names, prefixes);
+        ContextHolder.logInfo("monitor_whitelist: " + (allowMode ? "allow " : "deny ")
+                + whitelist.names.size() + " names, " + whitelist.prefixes.size() + " prefixes");
+        return whitelist;
+    }
+}
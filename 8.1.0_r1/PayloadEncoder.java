@@ -0,0 +1,166 @@
+package javax.crypto;
+
+/**
+ * Text encodings of captured payloads, shared by Cipher, Mac and MessageDigest.
+ *
+ * Everything works on (array, offset, length) so callers never copy a
+ * sub-range first, and the characters are produced in a per-thread scratch
+ * <code>char[]</code>, so the only allocation is the resulting String.
+ */
+public final class PayloadEncoder {
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // scratch buffers above this size are not kept around
+    private static final int MAX_CACHED_CHARS = 64 * 1024;
+
+    private static final ThreadLocal<char[]> scratch = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[1024];
+        }
+    };
+
+    private PayloadEncoder() {
+    }
+
+    private static char[] chars(int n) {
+        char[] buf = scratch.get();
+        if (buf.length >= n) {
+            return buf;
+        }
+        buf = new char[n];
+        if (n <= MAX_CACHED_CHARS) {
+            scratch.set(buf);
+        }
+        return buf;
+    }
+
+    public static String byteArrayToString(byte[] input) {
+        if (input == null) {
+            return "";
+        }
+        return byteArrayToString(input, 0, input.length);
+    }
+
+    /**
+     * Printable ASCII (other bytes shown as '.') when more than 60% of the
+     * bytes are printable, Base64 otherwise.
+     */
+    public static String byteArrayToString(byte[] input, int offset, int len) {
+        if (input == null) {
+            return "";
+        }
+        if (!isMostlyPrintable(input, offset, len)) {
+            return base64(input, offset, len);
+        }
+        return new String(printableChars(input, offset, len), 0, len);
+    }
+
+    /**
+     * The bytes as printable ASCII, others shown as '.', in the first
+     * <code>len</code> chars of the per-thread scratch array.
+     */
+    static char[] printableChars(byte[] input, int offset, int len) {
+        char[] out = chars(len);
+        for (int i = 0; i < len; i++) {
+            int b = input[offset + i];
+            out[i] = (b >= 32 && b < 127) ? (char) b : '.';
+        }
+        return out;
+    }
+
+    static boolean isMostlyPrintable(byte[] input, int offset, int len) {
+        int printable = 0;
+        int end = offset + len;
+        for (int i = offset; i < end; i++) {
+            int b = input[i];
+            if (b >= 32 && b < 127) {
+                printable++;
+            }
+        }
+        return printable > len * 0.60;
+    }
+
+    public static String base64(byte[] input) {
+        if (input == null) {
+            return "";
+        }
+        return base64(input, 0, input.length);
+    }
+
+    /**
+     * Standard Base64 with padding and no line wrapping, same output as
+     * AndroidBase64.encodeToString(input, offset, len, NO_WRAP).
+     */
+    public static String base64(byte[] input, int offset, int len) {
+        if (input == null) {
+            return "";
+        }
+        return new String(base64Chars(input, offset, len), 0, base64Length(len));
+    }
+
+    static int base64Length(int len) {
+        return (len + 2) / 3 * 4;
+    }
+
+    /**
+     * Base64 of the bytes in the first {@link #base64Length(int)} chars of
+     * the per-thread scratch array.
+     */
+    static char[] base64Chars(byte[] input, int offset, int len) {
+        char[] out = chars(base64Length(len));
+        int ip = offset;
+        int op = 0;
+        int end = offset + len - len % 3;
+        while (ip < end) {
+            int v = (input[ip] & 0xff) << 16 | (input[ip + 1] & 0xff) << 8 | (input[ip + 2] & 0xff);
+            out[op++] = BASE64[v >>> 18];
+            out[op++] = BASE64[(v >>> 12) & 0x3f];
+            out[op++] = BASE64[(v >>> 6) & 0x3f];
+            out[op++] = BASE64[v & 0x3f];
+            ip += 3;
+        }
+        int rest = len % 3;
+        if (rest == 1) {
+            int v = (input[ip] & 0xff) << 16;
+            out[op++] = BASE64[v >>> 18];
+            out[op++] = BASE64[(v >>> 12) & 0x3f];
+            out[op++] = '=';
+            out[op++] = '=';
+        } else if (rest == 2) {
+            int v = (input[ip] & 0xff) << 16 | (input[ip + 1] & 0xff) << 8;
+            out[op++] = BASE64[v >>> 18];
+            out[op++] = BASE64[(v >>> 12) & 0x3f];
+            out[op++] = BASE64[(v >>> 6) & 0x3f];
+            out[op++] = '=';
+        }
+        return out;
+    }
+
+    public static String toHexString(byte[] input) {
+        if (input == null) {
+            return "";
+        }
+        return toHexString(input, 0, input.length);
+    }
+
+    public static String toHexString(byte[] input, int offset, int len) {
+        return new String(hexChars(input, offset, len), 0, len * 2);
+    }
+
+    /**
+     * Lower case hex of the bytes in the first <code>len * 2</code> chars of
+     * the per-thread scratch array.
+     */
+    static char[] hexChars(byte[] input, int offset, int len) {
+        char[] out = chars(len * 2);
+        for (int i = 0; i < len; i++) {
+            int b = input[offset + i] & 0xff;
+            out[2 * i] = HEX[b >>> 4];
+            out[2 * i + 1] = HEX[b & 0xf];
+        }
+        return out;
+    }
+}
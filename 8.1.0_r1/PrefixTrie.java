@@ -0,0 +1,84 @@
+package javax.crypto;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Immutable character trie of prefixes; {@link #matches(String)} is true
+ * when some prefix starts the string. The cost is one short binary search
+ * per character of the string, whatever the number of prefixes.
+ */
+final class PrefixTrie {
+    private static final char[] NO_LABELS = new char[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private static final class Node {
+        // sorted, children[i] follows labels[i]
+        char[] labels = NO_LABELS;
+        Node[] children = NO_CHILDREN;
+        boolean terminal;
+
+        Node child(char c) {
+            int i = Arrays.binarySearch(labels, c);
+            return i < 0 ? null : children[i];
+        }
+
+        Node addChild(char c) {
+            int i = Arrays.binarySearch(labels, c);
+            if (i >= 0) {
+                return children[i];
+            }
+            i = -i - 1;
+            char[] newLabels = new char[labels.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(labels, 0, newLabels, 0, i);
+            System.arraycopy(children, 0, newChildren, 0, i);
+            System.arraycopy(labels, i, newLabels, i + 1, labels.length - i);
+            System.arraycopy(children, i, newChildren, i + 1, children.length - i);
+            Node node = new Node();
+            newLabels[i] = c;
+            newChildren[i] = node;
+            labels = newLabels;
+            children = newChildren;
+            return node;
+        }
+    }
+
+    private final Node root = new Node();
+    private final int size;
+
+    PrefixTrie(Collection<String> prefixes) {
+        int n = 0;
+        for (String prefix : prefixes) {
+            Node node = root;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.addChild(prefix.charAt(i));
+            }
+            if (!node.terminal) {
+                node.terminal = true;
+                n++;
+            }
+        }
+        size = n;
+    }
+
+    boolean matches(String s) {
+        Node node = root;
+        for (int i = 0; ; i++) {
+            if (node.terminal) {
+                return true;
+            }
+            if (i == s.length()) {
+                return false;
+            }
+            node = node.child(s.charAt(i));
+            if (node == null) {
+                return false;
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+}
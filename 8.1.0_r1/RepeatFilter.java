@@ -0,0 +1,213 @@
+package javax.crypto;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Collapses records that repeat the same content, e.g. a device id
+ * encrypted with a fixed key and IV on every request. Writer thread only.
+ *
+ * The first record with a given content (all fields, so algorithm, key,
+ * iv, input and output; "sampledOut" excluded) and call stack is written in
+ * full with an extra "Hash" field. Identical records within the next
+ * dedup.windowMs are only counted; when the window ends, or the entry is
+ * evicted because more than dedup.capacity contents are tracked, one short
+ * record with the same tag is written:
+ * <pre>
+ * CipherTag:{"Hash":"8c3f...","repeat":42}
+ * </pre>
+ * After that the next occurrence is written in full again. Off unless
+ * dedup.windowMs is set.
+ *
+ * With cipher.sessions every init() gets a new SessionId, so the id itself
+ * is not part of any hash: a CipherTag record is hashed with the content of
+ * its session (key, iv, opmode, transformation, ...), and a session record
+ * identical to one written in this window is collapsed too. Records of a
+ * collapsed session are written with the SessionId of the one it repeats.
+ */
+final class RepeatFilter {
+    static final long WINDOW_MS = LoggerOptions.getInt("dedup.windowMs", 0);
+    private static final int CAPACITY = LoggerOptions.getInt("dedup.capacity", 4096);
+    static final boolean ENABLED = WINDOW_MS > 0 && CAPACITY > 0;
+
+    static final String HASH_FIELD = "Hash";
+    private static final String SAMPLED_OUT = "sampledOut";
+    private static final String SESSION_TAG = "CipherSessionTag:";
+    private static final String SESSION_ID = "SessionId";
+
+    /**
+     * A record the writer has to write: a finished "repeat" count, or a
+     * collapsed session record that is no longer tracked.
+     */
+    static final class Record {
+        final String filepath;
+        final String tag;
+        final CryptoEvent event;
+        final StackTraceElement[] frames;
+
+        Record(String filepath, String tag, CryptoEvent event, StackTraceElement[] frames) {
+            this.filepath = filepath;
+            this.tag = tag;
+            this.event = event;
+            this.frames = frames;
+        }
+    }
+
+    /**
+     * A content seen in the current window.
+     */
+    private static final class Seen {
+        final String filepath;
+        final String tag;
+        final String hash;
+        final long windowStart;
+        // session records: SessionId of the one written in full
+        final long sessionId;
+        long repeats;
+        long sampledOut;
+
+        Seen(String filepath, String tag, String hash, long windowStart, long sessionId) {
+            this.filepath = filepath;
+            this.tag = tag;
+            this.hash = hash;
+            this.windowStart = windowStart;
+            this.sessionId = sessionId;
+        }
+
+        /**
+         * The "repeat xN" record for this window.
+         */
+        Record toRecord() {
+            CryptoEvent event = new CryptoEvent();
+            event.put(HASH_FIELD, hash);
+            event.put("repeat", repeats);
+            if (sampledOut > 0) {
+                event.put(SAMPLED_OUT, sampledOut);
+            }
+            return new Record(filepath, tag, event, null);
+        }
+    }
+
+    /**
+     * A session record the filter has seen, by SessionId.
+     */
+    private static final class Session {
+        // content without SessionId and stack
+        final long contentHash;
+        // SessionId that records of this session are written with
+        final long writtenId;
+        // collapsed sessions only: written after all when the entry is evicted
+        final Record collapsed;
+
+        Session(long contentHash, long writtenId, Record collapsed) {
+            this.contentHash = contentHash;
+            this.writtenId = writtenId;
+            this.collapsed = collapsed;
+        }
+    }
+
+    // window start order, so expired entries are at the head
+    private final LinkedHashMap<Long, Seen> seen = new LinkedHashMap<>();
+    // access order, so sessions that are still used are kept
+    private final LinkedHashMap<Long, Session> sessions = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Returns true when <code>event</code> must be written in full (and
+     * tags it with "Hash"), false when it was counted as a repeat. The same
+     * content from different call sites is never collapsed.
+     * Records that have to be written now (windows that were evicted,
+     * session records that can no longer be collapsed) go to
+     * <code>finished</code>.
+     */
+    boolean admit(String filepath, String tag, CryptoEvent event, StackTraceElement[] frames,
+                  long now, ArrayList<Record> finished) {
+        long id = event.getLong(SESSION_ID, 0);
+        long content = event.contentHash(SAMPLED_OUT, SESSION_ID) * 31 + tag.hashCode() * 17L + filepath.hashCode();
+        boolean isSession = id != 0 && SESSION_TAG.equals(tag);
+        Session session = null;
+        if (!isSession && id != 0) {
+            session = sessions.get(id);
+            // a session the filter never saw keeps its own id in the hash
+            content = content * 31 + (session != null ? session.contentHash : id);
+        }
+        long hash = content;
+        if (frames != null) {
+            hash = hash * 31 + Arrays.hashCode(frames);
+        }
+
+        Seen s = seen.get(hash);
+        if (s != null && now - s.windowStart < WINDOW_MS) {
+            s.repeats++;
+            s.sampledOut += sampledOut(event);
+            if (isSession) {
+                trackSession(id, new Session(content, s.sessionId,
+                        new Record(filepath, tag, event, frames)), finished);
+            }
+            return false;
+        }
+        if (s != null) {
+            seen.remove(hash);
+            if (s.repeats > 0) {
+                finished.add(s.toRecord());
+            }
+        }
+        s = new Seen(filepath, tag, toHex(hash), now, id);
+        seen.put(hash, s);
+        if (seen.size() > CAPACITY) {
+            Iterator<Seen> it = seen.values().iterator();
+            Seen eldest = it.next();
+            it.remove();
+            if (eldest.repeats > 0) {
+                finished.add(eldest.toRecord());
+            }
+        }
+        if (isSession) {
+            trackSession(id, new Session(content, id, null), finished);
+        } else if (session != null && session.writtenId != id) {
+            event.put(SESSION_ID, session.writtenId);
+        }
+        event.put(HASH_FIELD, s.hash);
+        return true;
+    }
+
+    private void trackSession(long id, Session session, ArrayList<Record> finished) {
+        sessions.put(id, session);
+        if (sessions.size() > CAPACITY) {
+            Iterator<Session> it = sessions.values().iterator();
+            Session eldest = it.next();
+            it.remove();
+            // later records of it keep their own id, so it has to be defined
+            if (eldest.collapsed != null) {
+                finished.add(eldest.collapsed);
+            }
+        }
+    }
+
+    /**
+     * Moves windows that ended before <code>now</code> to <code>finished</code>.
+     */
+    void expire(long now, ArrayList<Record> finished) {
+        Iterator<Seen> it = seen.values().iterator();
+        while (it.hasNext()) {
+            Seen s = it.next();
+            if (now - s.windowStart < WINDOW_MS) {
+                break;
+            }
+            it.remove();
+            if (s.repeats > 0) {
+                finished.add(s.toRecord());
+            }
+        }
+    }
+
+    private static long sampledOut(CryptoEvent event) {
+        return event.getLong(SAMPLED_OUT, 0);
+    }
+
+    private static String toHex(long v) {
+        String s = Long.toHexString(v);
+        return s.length() == 16 ? s : "0000000000000000".substring(s.length()) + s;
+    }
+}
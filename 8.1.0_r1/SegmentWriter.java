@@ -0,0 +1,116 @@
+package javax.crypto;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * Memory mapped log output for one log path, used with log.writer=mmap.
+ *
+ * The log is a series of pre-sized segment files next to the path:
+ * Cipher.0001, Cipher.0002, ... (Cipher.bin.0001 for the binary format).
+ * Each segment is mapped once and records are copied into it with a single
+ * bulk put; the kernel writes the pages back, so a record is safe as soon
+ * as the put returns, even if the app crashes right after. A full segment
+ * is cut to its used length and the next one is started. Every process
+ * starts a new segment, so the last segment of a crashed process keeps
+ * its unused tail of zero bytes; readers stop at the first zero byte.
+ * Segments are claimed with {@link File#createNewFile()}, so processes of
+ * the same package writing at the same time never map the same one.
+ * Writer thread only.
+ */
+final class SegmentWriter {
+    static final int SEGMENT_BYTES = LoggerOptions.getInt("log.segmentBytes", 8 * 1024 * 1024);
+
+    private final String path;
+    private int sequence;
+    private RandomAccessFile file;
+    private MappedByteBuffer buffer;
+
+    SegmentWriter(String path) {
+        this.path = path;
+        this.sequence = lastSequence(path);
+    }
+
+    void write(byte[] data) throws IOException {
+        if (buffer == null || buffer.remaining() < data.length) {
+            roll(data.length);
+        }
+        buffer.put(data);
+    }
+
+    /**
+     * Cuts the current segment to its used length and releases it.
+     */
+    void close() throws IOException {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.getChannel().truncate(buffer.position());
+        } finally {
+            file.close();
+            file = null;
+            buffer = null;
+        }
+    }
+
+    private void roll(int needed) throws IOException {
+        close();
+        sequence = claimSequence(path, sequence);
+        String name = segmentName(path, sequence);
+        // a record larger than a segment gets a segment of its own
+        int size = Math.max(SEGMENT_BYTES, needed);
+        RandomAccessFile f = new RandomAccessFile(name, "rw");
+        try {
+            buffer = f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            f.close();
+            throw e;
+        }
+        file = f;
+    }
+
+    static String segmentName(String path, int sequence) {
+        return path + "." + String.format(Locale.US, "%04d", sequence);
+    }
+
+    /**
+     * Creates the first segment file after <code>last</code> that does not
+     * exist yet and returns its number; another process may take any of
+     * them at the same time.
+     */
+    static int claimSequence(String path, int last) throws IOException {
+        int sequence = last + 1;
+        while (!new File(segmentName(path, sequence)).createNewFile()) {
+            sequence++;
+        }
+        return sequence;
+    }
+
+    // highest segment number already on disk, so a new process never maps over old data
+    static int lastSequence(String path) {
+        File base = new File(path);
+        File dir = base.getParentFile();
+        String[] names = dir == null ? null : dir.list();
+        if (names == null) {
+            return 0;
+        }
+        String prefix = base.getName() + ".";
+        int last = 0;
+        for (String name : names) {
+            if (!name.startsWith(prefix)) {
+                continue;
+            }
+            try {
+                last = Math.max(last, Integer.parseInt(name.substring(prefix.length())));
+            } catch (NumberFormatException ignored) {
+                // Cipher.bin next to Cipher, not a segment
+            }
+        }
+        return last;
+    }
+}
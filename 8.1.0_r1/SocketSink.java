@@ -0,0 +1,244 @@
+package javax.crypto;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+
+/**
+ * Streams the log to a collector (tools/CryptoLogCollector) instead of, or
+ * as well as, the files under /data/data/&lt;pkg&gt;/, selected with
+ * sink.address:
+ * <pre>
+ * sink.address=tcp:127.0.0.1:7000           adb reverse tcp:7000 tcp:7000 (needs INTERNET)
+ * sink.address=localabstract:crypto_log     adb reverse localabstract:crypto_log tcp:7000
+ * sink.files=false                          nothing is written on the device
+ * </pre>
+ * The writer thread hands over exactly the bytes it would append to a file,
+ * so the collector rebuilds the same files. A connection is a stream of
+ * frames:
+ * <pre>
+ * frame := length:u32 type:u8 body[length - 1]       (big endian)
+ *   'H' hello : "CLOG" version:u8 startMillis:u64    first frame of a connection
+ *   'D' data  : name:utf path below the data dir ("com.hookme/Cipher"), bytes to append
+ *   'G' gap   : frames:u64                           frames lost before the next one
+ * </pre>
+ * A sender thread owns the socket and reconnects with backoff. Frames wait
+ * in a queue of at most sink.bufferBytes; when the collector is slower than
+ * the app (or not there yet) the queue fills and new frames are dropped,
+ * never the app's thread blocked. Every loss (full queue, broken
+ * connection) starts a new {@link #epoch()}: the writer then sends once
+ * more what the files define so far (StackTag, KeyTag, binary header and
+ * tables), so what arrives after a gap never refers to something the
+ * collector did not get, and goes on sending the bytes of the files.
+ */
+final class SocketSink implements Runnable {
+    static final String ADDRESS = LoggerOptions.getString("sink.address", "").trim();
+    static final boolean FILES = LoggerOptions.getBoolean("sink.files", true);
+    private static final int BUFFER_BYTES = LoggerOptions.getInt("sink.bufferBytes", 4 * 1024 * 1024);
+
+    static final byte[] MAGIC = {'C', 'L', 'O', 'G'};
+    static final int VERSION = 1;
+    static final byte FRAME_HELLO = 'H';
+    static final byte FRAME_DATA = 'D';
+    static final byte FRAME_GAP = 'G';
+
+    private static final long MIN_BACKOFF_MS = 100;
+    private static final long MAX_BACKOFF_MS = 5000;
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+
+    private static final class Frame {
+        final String name;
+        final byte[] data;
+
+        Frame(String name, byte[] data) {
+            this.name = name;
+            this.data = data;
+        }
+    }
+
+    // guarded by this
+    private final ArrayDeque<Frame> queue = new ArrayDeque<>();
+    private long queuedBytes;
+    private long droppedFrames;
+    private int epoch;
+
+    // sender thread only
+    private Closeable connection;
+    private DataOutputStream out;
+    private long reportedDropped;
+    private final long startMillis = System.currentTimeMillis();
+
+    private SocketSink() {
+    }
+
+    /**
+     * The sink for sink.address, with its sender thread running; null when
+     * no address is configured.
+     */
+    static SocketSink start() {
+        if (ADDRESS.isEmpty()) {
+            return null;
+        }
+        if (!ADDRESS.startsWith("tcp:") && !ADDRESS.startsWith("localabstract:")) {
+            ContextHolder.logWarning("unknown sink.address " + ADDRESS);
+            return null;
+        }
+        SocketSink sink = new SocketSink();
+        Thread t = new Thread(sink, "CryptoLogSink");
+        t.setDaemon(true);
+        t.start();
+        return sink;
+    }
+
+    /**
+     * Changes whenever frames were lost.
+     */
+    synchronized int epoch() {
+        return epoch;
+    }
+
+    /**
+     * Queues <code>data</code> for the file <code>name</code>. Frames
+     * rendered for an older epoch, or that do not fit, are dropped.
+     */
+    synchronized void offer(String name, byte[] data, int frameEpoch) {
+        if (frameEpoch != epoch) {
+            droppedFrames++;
+            return;
+        }
+        if (queuedBytes + data.length > BUFFER_BYTES && !queue.isEmpty()) {
+            droppedFrames++;
+            epoch++;
+            return;
+        }
+        queue.add(new Frame(name, data));
+        queuedBytes += data.length;
+        if (queue.size() == 1) {
+            notifyAll();
+        }
+    }
+
+    private synchronized Frame take(boolean wait) throws InterruptedException {
+        while (queue.isEmpty()) {
+            if (!wait) {
+                return null;
+            }
+            wait();
+        }
+        Frame frame = queue.poll();
+        queuedBytes -= frame.data.length;
+        return frame;
+    }
+
+    private synchronized long droppedFrames() {
+        return droppedFrames;
+    }
+
+    // what was queued may refer to what was in flight, drop it all
+    private synchronized void connectionLost() {
+        droppedFrames += queue.size();
+        queue.clear();
+        queuedBytes = 0;
+        epoch++;
+    }
+
+    @Override
+    public void run() {
+        long backoff = MIN_BACKOFF_MS;
+        while (true) {
+            try {
+                if (out == null) {
+                    try {
+                        connect();
+                        backoff = MIN_BACKOFF_MS;
+                    } catch (Exception e) {
+                        close();
+                        Thread.sleep(backoff);
+                        backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+                        continue;
+                    }
+                }
+                try {
+                    Frame frame = take(false);
+                    if (frame == null) {
+                        out.flush();
+                        frame = take(true);
+                    }
+                    send(frame);
+                } catch (IOException e) {
+                    ContextHolder.logWarning("SocketSink excepiton:" + e.getMessage());
+                    close();
+                    connectionLost();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable e) {
+                ContextHolder.logWarning("SocketSink excepiton:" + e.getMessage());
+            }
+        }
+    }
+
+    private void send(Frame frame) throws IOException {
+        long dropped = droppedFrames();
+        if (dropped != reportedDropped) {
+            out.writeInt(1 + 8);
+            out.writeByte(FRAME_GAP);
+            out.writeLong(dropped - reportedDropped);
+            reportedDropped = dropped;
+        }
+        byte[] name = frame.name.getBytes("UTF-8");
+        out.writeInt(1 + 2 + name.length + frame.data.length);
+        out.writeByte(FRAME_DATA);
+        out.writeShort(name.length);
+        out.write(name);
+        out.write(frame.data);
+    }
+
+    private void connect() throws Exception {
+        OutputStream stream;
+        if (ADDRESS.startsWith("tcp:")) {
+            int colon = ADDRESS.lastIndexOf(':');
+            Socket socket = new Socket();
+            connection = socket;
+            socket.connect(new InetSocketAddress(ADDRESS.substring(4, colon),
+                    Integer.parseInt(ADDRESS.substring(colon + 1))), CONNECT_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            stream = socket.getOutputStream();
+        } else if (ADDRESS.startsWith("localabstract:")) {
+            // android.net is not part of libcore, reach LocalSocket by reflection
+            Class<?> addressClass = Class.forName("android.net.LocalSocketAddress");
+            Object address = addressClass.getConstructor(String.class).newInstance(ADDRESS.substring(14));
+            Class<?> socketClass = Class.forName("android.net.LocalSocket");
+            Object socket = socketClass.getConstructor().newInstance();
+            connection = (Closeable) socket;
+            socketClass.getMethod("connect", addressClass).invoke(socket, address);
+            stream = (OutputStream) socketClass.getMethod("getOutputStream").invoke(socket);
+        } else {
+            throw new IOException("unknown sink.address " + ADDRESS);
+        }
+        out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+        out.writeInt(1 + MAGIC.length + 1 + 8);
+        out.writeByte(FRAME_HELLO);
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(startMillis);
+        out.flush();
+        ContextHolder.logInfo("SocketSink connected to " + ADDRESS);
+    }
+
+    private void close() {
+        out = null;
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+            }
+            connection = null;
+        }
+    }
+}
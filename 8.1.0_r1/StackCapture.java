@@ -0,0 +1,133 @@
+package javax.crypto;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cheap call-stack capture for log events.
+ *
+ * The hook only creates a {@link Throwable}: on ART that records the native
+ * backtrace and defers building the StackTraceElement[] until
+ * {@link Throwable#getStackTrace()} is called. The writer thread does that
+ * and formats the frames with {@link #format(Throwable)}. Frames of the
+ * hooked classes themselves (Cipher.init -&gt; Cipher.passThrough_InitParams
+ * and the like) are dropped, so a trace starts at the app's call site.
+ *
+ * Options (monitor_options):
+ * <ul>
+ *   <li>stack.mode: lazy (default) or off</li>
+ *   <li>stack.maxDepth: max number of frames written, default 64</li>
+ *   <li>stack.skipFrames: extra frames dropped after the hooked class frames, default 0</li>
+ *   <li>stack.dedup: emit StackId references instead of full traces, default true</li>
+ * </ul>
+ */
+public final class StackCapture {
+    private static final int FRAME_CACHE_LIMIT = 8192;
+    // classes whose frames sit between the capture and the app's call
+    private static final HashSet<String> HOOK_CLASSES = new HashSet<>(Arrays.asList(
+            StackCapture.class.getName(),
+            "javax.crypto.Cipher",
+            "javax.crypto.Mac",
+            "java.security.MessageDigest",
+            "dalvik.system.VMStack"));
+
+    private static final boolean ENABLED = !"off".equals(LoggerOptions.getString("stack.mode", "lazy"));
+    private static final int MAX_DEPTH = LoggerOptions.getInt("stack.maxDepth", 64);
+    private static final int SKIP_FRAMES = LoggerOptions.getInt("stack.skipFrames", 0);
+    // write each distinct stack once and refer to it by id, see LogWriter
+    static final boolean DEDUP = LoggerOptions.getBoolean("stack.dedup", true);
+
+    // StackTraceElement -> "class.method() line"
+    private static final ConcurrentHashMap<StackTraceElement, String> frameCache = new ConcurrentHashMap<>();
+
+    private StackCapture() {
+    }
+
+    /**
+     * Records the caller's stack, or returns null when stack capture is off.
+     */
+    public static Throwable capture() {
+        return ENABLED ? new Throwable() : null;
+    }
+
+    /**
+     * Formats a captured stack the way {@link MyUtil#getCurrentStackTrack} always did:
+     * one "class.method() line" per frame, joined by " &lt;- " and a line break.
+     */
+    public static String format(Throwable stack) {
+        if (stack == null) {
+            return "none";
+        }
+        return formatFrames(frames(stack));
+    }
+
+    public static String format(StackTraceElement[] st) {
+        if (st == null) {
+            return "none";
+        }
+        return formatFrames(trim(st));
+    }
+
+    /**
+     * Frames of a captured stack with the capture machinery removed and
+     * the depth limit applied.
+     */
+    public static StackTraceElement[] frames(Throwable stack) {
+        return trim(stack.getStackTrace());
+    }
+
+    /**
+     * Formats frames that were already trimmed by {@link #frames(Throwable)}.
+     */
+    public static String formatFrames(StackTraceElement[] frames) {
+        StringBuilder sb = new StringBuilder(frames.length * 64);
+        for (StackTraceElement e : frames) {
+            if (sb.length() > 0) {
+                sb.append(" <- ").append('\n');
+            }
+            sb.append(frame(e));
+        }
+        return sb.toString();
+    }
+
+    private static StackTraceElement[] trim(StackTraceElement[] st) {
+        int start = Math.min(st.length, firstUsefulFrame(st) + SKIP_FRAMES);
+        int end = Math.min(st.length, start + MAX_DEPTH);
+        if (start == 0 && end == st.length) {
+            return st;
+        }
+        return Arrays.copyOfRange(st, start, end);
+    }
+
+    /**
+     * Index of the first frame that is not part of the capture machinery
+     * (VMStack/Thread.getStackTrace for eager traces, this class for lazy ones)
+     * or of the hooked Cipher/Mac/MessageDigest methods.
+     */
+    private static int firstUsefulFrame(StackTraceElement[] st) {
+        int i = 0;
+        while (i < st.length) {
+            String cls = st[i].getClassName();
+            if (HOOK_CLASSES.contains(cls)
+                    || (cls.equals("java.lang.Thread") && st[i].getMethodName().equals("getStackTrace"))) {
+                i++;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    private static String frame(StackTraceElement e) {
+        String s = frameCache.get(e);
+        if (s == null) {
+            s = e.getClassName() + "." + e.getMethodName() + "() " + e.getLineNumber();
+            if (frameCache.size() >= FRAME_CACHE_LIMIT) {
+                frameCache.clear();
+            }
+            frameCache.put(e, s);
+        }
+        return s;
+    }
+}
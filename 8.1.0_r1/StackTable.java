@@ -0,0 +1,79 @@
+package javax.crypto;
+
+import android.system.Os;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Interning table for call stacks: the same frame array always gets the same
+ * integer id for the life of the process. Used by the writer thread only.
+ *
+ * All processes of a package (main, ":push", ...) append to the same files,
+ * so the id that is written carries the pid in its high 32 bits, see
+ * {@link #writtenId(int)}.
+ */
+final class StackTable {
+    private static final int MAX_STACKS = 65536;
+    // only loaded with the writer, never in zygote
+    private static final long PROCESS_BITS = (long) Os.getpid() << 32;
+
+    private final HashMap<Key, Integer> ids = new HashMap<>();
+    private int nextId = 1;
+    // frames of id n at n - 1
+    private final ArrayList<StackTraceElement[]> frames = new ArrayList<>();
+
+    private static final class Key {
+        final StackTraceElement[] frames;
+        final int hash;
+
+        Key(StackTraceElement[] frames) {
+            this.frames = frames;
+            this.hash = Arrays.hashCode(frames);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).hash == hash && Arrays.equals(((Key) o).frames, frames);
+        }
+    }
+
+    /**
+     * Returns the id of <code>frames</code>, assigning a new one on first
+     * sight, or 0 once the table is full.
+     */
+    int idFor(StackTraceElement[] frames) {
+        Key key = new Key(frames);
+        Integer id = ids.get(key);
+        if (id != null) {
+            return id;
+        }
+        if (ids.size() >= MAX_STACKS) {
+            return 0;
+        }
+        int newId = nextId++;
+        ids.put(key, newId);
+        this.frames.add(frames);
+        return newId;
+    }
+
+    /**
+     * The frames <code>id</code> was assigned to.
+     */
+    StackTraceElement[] frames(int id) {
+        return frames.get(id - 1);
+    }
+
+    /**
+     * The "StackId" written for <code>id</code>, unique across processes.
+     */
+    static long writtenId(int id) {
+        return PROCESS_BITS | id;
+    }
+}
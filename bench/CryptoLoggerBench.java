@@ -0,0 +1,253 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Throughput and allocation of the hooked crypto paths on a desktop JVM.
+ * Run it through bench/run.sh, which patches the AOSP classes of this
+ * repository into java.base and starts one JVM per mode:
+ * <ul>
+ *   <li>stock: the JDK's own classes, no hooks (baseline)</li>
+ *   <li>unmonitored: hooks present, package not in monitor_package</li>
+ *   <li>whitelisted: hooks present, package in MyUtil.WhiteListSet</li>
+ *   <li>monitored: hooks present and every call logged</li>
+ * </ul>
+ * For every operation and payload size it prints ops/s, MB/s, bytes
+ * allocated by the calling thread per op and process CPU time per op. CPU
+ * time includes the background writer thread; a monitored run also waits
+ * for the writer to go idle before the next measurement.
+ *
+ * System properties: bench.mode, bench.sizes (comma separated, k/m
+ * suffixes), bench.warmupMs, bench.measureMs, bench.ops (comma separated
+ * subset of the operation names).
+ */
+public class CryptoLoggerBench {
+    interface Op {
+        void run(byte[] input) throws Exception;
+    }
+
+    private static final String[] OP_NAMES = {"cipher.doFinal", "cipher.update+doFinal", "mac.doFinal", "digest.md5", "digest.sha256"};
+
+    public static void main(String[] args) throws Exception {
+        String mode = System.getProperty("bench.mode", "stock");
+        int[] sizes = parseSizes(System.getProperty("bench.sizes", "16,256,4k,64k,1m,16m"));
+        long warmupMs = Long.getLong("bench.warmupMs", 1000);
+        long measureMs = Long.getLong("bench.measureMs", 2000);
+        String opFilter = System.getProperty("bench.ops", "");
+
+        System.out.printf("%-12s %-22s %10s %12s %10s %14s %12s%n",
+                "mode", "op", "size", "ops/s", "MB/s", "alloc B/op", "cpu us/op");
+        for (String name : OP_NAMES) {
+            if (!opFilter.isEmpty() && !("," + opFilter + ",").contains("," + name + ",")) {
+                continue;
+            }
+            Op op = create(name);
+            for (int size : sizes) {
+                byte[] input = new byte[size];
+                new Random(size).nextBytes(input);
+                run(op, input, warmupMs);
+                awaitWriterIdle();
+                Result r = run(op, input, measureMs);
+                System.out.printf("%-12s %-22s %10d %12.1f %10.2f %14.0f %12.2f%n",
+                        mode, name, size, r.opsPerSecond(), r.opsPerSecond() * size / (1024 * 1024),
+                        r.allocatedPerOp(), r.cpuMicrosPerOp());
+                awaitWriterIdle();
+                truncateLogs();
+            }
+        }
+    }
+
+    static Op create(String name) throws Exception {
+        final SecretKeySpec aesKey = new SecretKeySpec("0123456789123456".getBytes("UTF-8"), "AES");
+        final IvParameterSpec iv = new IvParameterSpec("GSYHMBANKAESIVGS".getBytes("UTF-8"));
+        switch (name) {
+            case "cipher.doFinal": {
+                final Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+                cipher.init(Cipher.ENCRYPT_MODE, aesKey, iv);
+                return new Op() {
+                    @Override
+                    public void run(byte[] input) throws Exception {
+                        cipher.doFinal(input);
+                    }
+                };
+            }
+            case "cipher.update+doFinal": {
+                final Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+                cipher.init(Cipher.ENCRYPT_MODE, aesKey, iv);
+                return new Op() {
+                    @Override
+                    public void run(byte[] input) throws Exception {
+                        cipher.update(input);
+                        cipher.doFinal();
+                    }
+                };
+            }
+            case "mac.doFinal": {
+                final Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(aesKey.getEncoded(), "HmacSHA256"));
+                return new Op() {
+                    @Override
+                    public void run(byte[] input) throws Exception {
+                        mac.update(input);
+                        mac.doFinal();
+                    }
+                };
+            }
+            case "digest.md5":
+            case "digest.sha256": {
+                final MessageDigest md = MessageDigest.getInstance(name.equals("digest.md5") ? "MD5" : "SHA-256");
+                return new Op() {
+                    @Override
+                    public void run(byte[] input) throws Exception {
+                        md.update(input);
+                        md.digest();
+                    }
+                };
+            }
+            default:
+                throw new IllegalArgumentException(name);
+        }
+    }
+
+    static final class Result {
+        long ops;
+        long nanos;
+        long allocated;
+        long cpuNanos;
+
+        double opsPerSecond() {
+            return ops * 1e9 / nanos;
+        }
+
+        double allocatedPerOp() {
+            return allocated < 0 ? -1 : (double) allocated / ops;
+        }
+
+        double cpuMicrosPerOp() {
+            return cpuNanos < 0 ? -1 : cpuNanos / 1e3 / ops;
+        }
+    }
+
+    static Result run(Op op, byte[] input, long millis) throws Exception {
+        long threadId = Thread.currentThread().getId();
+        long alloc0 = allocatedBytes(threadId);
+        long cpu0 = processCpuNanos();
+        long start = System.nanoTime();
+        long deadline = start + millis * 1000000L;
+        long ops = 0;
+        long now;
+        do {
+            // at least one op even for 16 MB payloads
+            for (int i = 0; i < 16; i++) {
+                op.run(input);
+                ops++;
+            }
+            now = System.nanoTime();
+        } while (now < deadline);
+        Result r = new Result();
+        r.ops = ops;
+        r.nanos = now - start;
+        long alloc1 = allocatedBytes(threadId);
+        r.allocated = alloc0 < 0 || alloc1 < 0 ? -1 : alloc1 - alloc0;
+        long cpu1 = processCpuNanos();
+        r.cpuNanos = cpu0 < 0 || cpu1 < 0 ? -1 : cpu1 - cpu0;
+        return r;
+    }
+
+    static long allocatedBytes(long threadId) {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(threadId);
+        }
+        return -1;
+    }
+
+    static long processCpuNanos() {
+        java.lang.management.OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    static ArrayList<File> logFiles() {
+        ArrayList<File> files = new ArrayList<>();
+        String dataDir = System.getProperty("crypto.data_dir");
+        if (dataDir == null) {
+            return files;
+        }
+        File[] pkgs = new File(dataDir).listFiles();
+        if (pkgs == null) {
+            return files;
+        }
+        for (File pkg : pkgs) {
+            File[] logs = pkg.listFiles();
+            if (logs != null) {
+                for (File f : logs) {
+                    if (f.isFile()) {
+                        files.add(f);
+                    }
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Waits until the log files stop growing, so a measurement does not pay
+     * for the previous one's backlog. Gives up after 60 s.
+     */
+    static void awaitWriterIdle() throws InterruptedException {
+        long last = -1;
+        int stable = 0;
+        long deadline = System.currentTimeMillis() + 60000;
+        while (stable < 3 && System.currentTimeMillis() < deadline) {
+            long total = 0;
+            for (File f : logFiles()) {
+                total += f.length();
+            }
+            stable = total == last ? stable + 1 : 0;
+            last = total;
+            Thread.sleep(100);
+        }
+    }
+
+    // the writer keeps its files open in append mode, so truncating is enough
+    static void truncateLogs() throws IOException {
+        for (File f : logFiles()) {
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            try {
+                raf.setLength(0);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    static int[] parseSizes(String s) {
+        String[] parts = s.split(",");
+        int[] sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            String p = parts[i].trim().toLowerCase();
+            int mul = 1;
+            if (p.endsWith("k")) {
+                mul = 1024;
+                p = p.substring(0, p.length() - 1);
+            } else if (p.endsWith("m")) {
+                mul = 1024 * 1024;
+                p = p.substring(0, p.length() - 1);
+            }
+            sizes[i] = Integer.parseInt(p) * mul;
+        }
+        return sizes;
+    }
+}
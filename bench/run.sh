@@ -0,0 +1,57 @@
+#!/bin/sh
+# Runs CryptoLoggerBench on a desktop JDK (11+) against the hooked classes of
+# this repository, one JVM per mode. Extra arguments go to the benchmark JVM:
+#   bench/run.sh
+#   MODES="stock monitored" bench/run.sh -Dbench.sizes=16,4k,1m -Dbench.ops=digest.md5
+#   OPTIONS="log.format=binary" MODES=monitored bench/run.sh
+set -e
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+OUT=${BENCH_OUT:-/tmp/crypto-bench}
+MODES=${MODES:-"stock unmonitored whitelisted monitored"}
+TARGET=com.bench.target
+
+rm -rf "$OUT"
+mkdir -p "$OUT/src/javax/crypto" "$OUT/src/java/security" "$OUT/patch" "$OUT/classes" "$OUT/data"
+
+for f in "$ROOT"/8.1.0_r1/*.java; do
+    if grep -q '^package javax.crypto;' "$f"; then
+        cp "$f" "$OUT/src/javax/crypto/"
+    fi
+done
+cp "$ROOT/8.1.0_r1/MessageDigest.java" "$OUT/src/java/security/"
+cp -r "$ROOT"/bench/stubs/* "$OUT/src/"
+# AOSP's JceSecurity has a RANDOM field, the desktop one does not
+sed 's/JceSecurity\.RANDOM/sun.security.jca.JCAUtil.getSecureRandom()/' \
+    "$ROOT/8.1.0_r1/Cipher.java" > "$OUT/src/javax/crypto/Cipher.java"
+
+# sun.security.jca is Android platform code but internal on a desktop JDK,
+# -XDignore.symbol.file keeps those warnings from burying real ones
+javac -Xlint:all -XDignore.symbol.file -encoding UTF-8 --patch-module java.base="$OUT/src" \
+    --add-modules java.logging --add-reads java.base=java.logging \
+    -d "$OUT/patch" $(find "$OUT/src" -name '*.java')
+javac -Xlint:all -d "$OUT/classes" "$ROOT/bench/CryptoLoggerBench.java"
+
+printf '%s\n' ${OPTIONS:-} > "$OUT/monitor_options"
+
+for mode in $MODES; do
+    pkg=$TARGET
+    case $mode in
+        stock)
+            java -Dbench.mode=stock "$@" -cp "$OUT/classes" CryptoLoggerBench
+            continue
+            ;;
+        unmonitored) echo com.other.app > "$OUT/monitor_package" ;;
+        whitelisted) pkg=com.android.settings; echo $pkg > "$OUT/monitor_package" ;;
+        monitored) echo $TARGET > "$OUT/monitor_package" ;;
+        *) echo "unknown mode $mode" >&2; exit 2 ;;
+    esac
+    mkdir -p "$OUT/data/$pkg"
+    java -Xmx4g --patch-module java.base="$OUT/patch" \
+        --add-modules java.logging --add-reads java.base=java.logging \
+        -Djava.util.logging.config.file="$ROOT/bench/logging.properties" \
+        -Dcrypto.monitor_package="$OUT/monitor_package" \
+        -Dcrypto.monitor_options="$OUT/monitor_options" \
+        -Dcrypto.data_dir="$OUT/data/" \
+        -Dbench.package=$pkg -Dbench.mode=$mode \
+        "$@" -cp "$OUT/classes" CryptoLoggerBench
+done
@@ -0,0 +1,18 @@
+package android.app;
+
+/**
+ * Off-device stand-in for the two ActivityThread methods ContextHolder
+ * calls by reflection. The package name comes from -Dbench.package.
+ */
+public final class ActivityThread {
+    private ActivityThread() {
+    }
+
+    public static String currentPackageName() {
+        return System.getProperty("bench.package", "com.bench.target");
+    }
+
+    public static Object currentApplication() {
+        return null;
+    }
+}
@@ -0,0 +1,14 @@
+package android.system;
+
+/**
+ * Off-device stand-in for the libcore call StackTable and Cipher use to
+ * tell the processes of a package apart.
+ */
+public final class Os {
+    private Os() {
+    }
+
+    public static int getpid() {
+        return (int) ProcessHandle.current().pid();
+    }
+}
@@ -0,0 +1,330 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Puts the init() fields back into Cipher records written with
+ * cipher.sessions=true. Each init() is logged once as
+ * "CipherSessionTag:{...,"SessionId":N}" and the following "CipherTag:"
+ * records only carry "SessionId":N; the output has every CipherTag record
+ * with the session's fields (key, iv, opmode, ...) in front of its own, the
+ * way the log looked before sessions. "KeyId"/"IvId" references
+ * (cipher.keyIds=true) are replaced by the key and iv fields of their
+ * "KeyTag:" definition the same way. Plain JVM, no dependencies:
+ * <pre>
+ * adb pull /data/data/com.hookme/Cipher
+ * java tools/CipherSessionJoin.java Cipher > Cipher.joined
+ * java tools/CryptoLogDecoder.java Cipher.bin | java tools/CipherSessionJoin.java -
+ * java tools/CipherSessionJoin.java --keep-sessions Cipher.0*
+ * </pre>
+ * Files are read in the order given, like one log. Session ids carry the
+ * pid in their high 32 bits, so processes that wrote the same file at the
+ * same time are not mixed up; as pids are reused, a reference means the
+ * latest session record with that id before it. Logs written before ids
+ * had the pid still join, with a warning. Session and KeyTag lines are dropped unless
+ * --keep-sessions is given; all other lines are copied unchanged.
+ */
+public class CipherSessionJoin {
+    static final String SESSION_TAG = "CipherSessionTag:";
+    static final String CIPHER_TAG = "CipherTag:";
+    static final String KEY_TAG = "KeyTag:";
+    static final String SESSION_ID = "\"SessionId\"";
+    // fingerprint fields that refer to a KeyTag definition
+    static final String[] KEY_IDS = {"\"KeyId\"", "\"IvId\""};
+
+    // fields of the session record that describe the init() call, not the operation
+    private static final String[] SESSION_ONLY = {SESSION_ID, "\"StackId\"", "\"StackTrace\"", "\"Hash\""};
+
+    private final Writer out;
+    private final boolean keepSessions;
+    private final HashMap<String, LinkedHashMap<String, String>> sessions = new HashMap<>();
+    // id field name + id -> the definition's other fields
+    private final HashMap<String, LinkedHashMap<String, String>> keys = new HashMap<>();
+    private long unresolved;
+    // session references without a pid, from logs that predate it
+    private long withoutPid;
+
+    CipherSessionJoin(Writer out, boolean keepSessions) {
+        this.out = out;
+        this.keepSessions = keepSessions;
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean keepSessions = false;
+        ArrayList<String> files = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--keep-sessions")) {
+                keepSessions = true;
+            } else {
+                files.add(arg);
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("usage: CipherSessionJoin [--keep-sessions] <Cipher log|->...");
+            System.exit(2);
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        CipherSessionJoin join = new CipherSessionJoin(out, keepSessions);
+        for (String file : files) {
+            Reader in = new InputStreamReader(file.equals("-") ? System.in : new FileInputStream(file),
+                    StandardCharsets.UTF_8);
+            try {
+                join.join(new BufferedReader(in, 64 * 1024));
+            } finally {
+                in.close();
+            }
+        }
+        out.flush();
+        if (join.unresolved > 0) {
+            System.err.println(join.unresolved + " references to a session or key that is not in the input");
+        }
+        if (join.withoutPid > 0) {
+            System.err.println(join.withoutPid + " session ids without a pid: records of processes that"
+                    + " wrote at the same time may be joined with the wrong session");
+        }
+    }
+
+    // false for ids written before they carried the pid in the high 32 bits
+    static boolean hasPid(String id) {
+        try {
+            return Long.parseLong(id) >>> 32 != 0;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    void join(BufferedReader in) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            // the unused zero tail of an mmap segment
+            int nul = line.indexOf('\0');
+            if (nul >= 0) {
+                line = line.substring(0, nul);
+                if (line.isEmpty()) {
+                    continue;
+                }
+            }
+            if (line.startsWith(KEY_TAG)) {
+                LinkedHashMap<String, String> fields = fields(line.substring(KEY_TAG.length()));
+                for (String name : KEY_IDS) {
+                    String id = fields == null ? null : fields.remove(name);
+                    if (id != null) {
+                        keys.put(name + id, fields);
+                    }
+                }
+                if (keepSessions) {
+                    out.write(line);
+                    out.write("\r\n");
+                }
+                continue;
+            }
+            if (line.startsWith(SESSION_TAG)) {
+                LinkedHashMap<String, String> fields = fields(line.substring(SESSION_TAG.length()));
+                String id = fields == null ? null : fields.get(SESSION_ID);
+                if (id != null) {
+                    fields = resolveKeys(fields);
+                    for (String name : SESSION_ONLY) {
+                        fields.remove(name);
+                    }
+                    sessions.put(id, fields);
+                }
+                if (keepSessions) {
+                    out.write(line);
+                    out.write("\r\n");
+                }
+                continue;
+            }
+            if (line.startsWith(CIPHER_TAG)) {
+                LinkedHashMap<String, String> fields = fields(line.substring(CIPHER_TAG.length()));
+                String id = fields == null ? null : fields.get(SESSION_ID);
+                LinkedHashMap<String, String> session = id == null ? null : sessions.get(id);
+                if (id != null && session == null) {
+                    unresolved++;
+                }
+                if (id != null && !hasPid(id)) {
+                    withoutPid++;
+                }
+                if (fields != null && (session != null || hasKeyIds(fields))) {
+                    out.write(CIPHER_TAG);
+                    out.write(merge(session == null ? new LinkedHashMap<>() : session, resolveKeys(fields)));
+                    out.write("\r\n");
+                    continue;
+                }
+            }
+            out.write(line);
+            out.write("\r\n");
+        }
+    }
+
+    private static boolean hasKeyIds(Map<String, String> fields) {
+        for (String name : KEY_IDS) {
+            if (fields.containsKey(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // the fields with each KeyId/IvId replaced, in place, by its definition
+    private LinkedHashMap<String, String> resolveKeys(LinkedHashMap<String, String> fields) {
+        if (!hasKeyIds(fields)) {
+            return fields;
+        }
+        LinkedHashMap<String, String> resolved = new LinkedHashMap<>();
+        for (Map.Entry<String, String> e : fields.entrySet()) {
+            LinkedHashMap<String, String> key = keys.get(e.getKey() + e.getValue());
+            if (key == null) {
+                if (hasKeyIdName(e.getKey())) {
+                    unresolved++;
+                }
+                resolved.put(e.getKey(), e.getValue());
+            } else {
+                resolved.putAll(key);
+            }
+        }
+        return resolved;
+    }
+
+    private static boolean hasKeyIdName(String name) {
+        for (String id : KEY_IDS) {
+            if (id.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // session fields first, then the record's own; the record wins on a name clash
+    static String merge(Map<String, String> session, Map<String, String> record) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append('{');
+        boolean first = true;
+        for (Map.Entry<String, String> e : session.entrySet()) {
+            if (!record.containsKey(e.getKey())) {
+                first = append(sb, e, first);
+            }
+        }
+        for (Map.Entry<String, String> e : record.entrySet()) {
+            first = append(sb, e, first);
+        }
+        return sb.append('}').toString();
+    }
+
+    private static boolean append(StringBuilder sb, Map.Entry<String, String> e, boolean first) {
+        if (!first) {
+            sb.append(',');
+        }
+        sb.append(e.getKey()).append(':').append(e.getValue());
+        return false;
+    }
+
+    /**
+     * Top level fields of a flat JSON object, keys and values kept as raw
+     * JSON text (keys with their quotes). Null when the text is not one.
+     */
+    static LinkedHashMap<String, String> fields(String json) {
+        LinkedHashMap<String, String> fields = new LinkedHashMap<>();
+        int i = skipSpace(json, 0);
+        if (i >= json.length() || json.charAt(i) != '{') {
+            return null;
+        }
+        i = skipSpace(json, i + 1);
+        if (i < json.length() && json.charAt(i) == '}') {
+            return fields;
+        }
+        while (i < json.length()) {
+            if (json.charAt(i) != '"') {
+                return null;
+            }
+            int keyEnd = endOfString(json, i);
+            if (keyEnd < 0) {
+                return null;
+            }
+            String key = json.substring(i, keyEnd);
+            i = skipSpace(json, keyEnd);
+            if (i >= json.length() || json.charAt(i) != ':') {
+                return null;
+            }
+            i = skipSpace(json, i + 1);
+            int valueEnd = endOfValue(json, i);
+            if (valueEnd < 0) {
+                return null;
+            }
+            fields.put(key, json.substring(i, valueEnd).trim());
+            i = skipSpace(json, valueEnd);
+            if (i >= json.length()) {
+                return null;
+            }
+            char c = json.charAt(i);
+            if (c == '}') {
+                return fields;
+            }
+            if (c != ',') {
+                return null;
+            }
+            i = skipSpace(json, i + 1);
+        }
+        return null;
+    }
+
+    // index after the closing quote of the string starting at start
+    private static int endOfString(String s, int start) {
+        for (int i = start + 1; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    // values of these records are strings or numbers; nested values are skipped whole
+    private static int endOfValue(String s, int start) {
+        if (start >= s.length()) {
+            return -1;
+        }
+        char c = s.charAt(start);
+        if (c == '"') {
+            return endOfString(s, start);
+        }
+        int depth = 0;
+        for (int i = start; i < s.length(); i++) {
+            c = s.charAt(i);
+            if (c == '"') {
+                i = endOfString(s, i) - 1;
+                if (i < 0) {
+                    return -1;
+                }
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (depth == 0) {
+                    return i;
+                }
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipSpace(String s, int i) {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,130 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Turns the files written with log.compress=deflate (Cipher.z.0001, ...,
+ * Cipher.bin.z.0001, ...) back into the plain log on stdout, in the order
+ * given. Plain JVM, no dependencies:
+ * <pre>
+ * adb pull /data/data/com.hookme/ pulled
+ * java tools/CompressedLogReader.java pulled/Cipher.z.* > Cipher.txt
+ * java tools/CompressedLogReader.java pulled/Cipher.bin.z.* | java tools/CryptoLogDecoder.java -
+ * </pre>
+ * Every file starts its own StackTag definitions and binary tables, so any
+ * subset of them reads fine. Blocks are checked against their CRC; a block
+ * cut short by a crash ends that file with a warning on stderr. The layout
+ * is described in javax.crypto.DeflateSegmentWriter.
+ */
+public class CompressedLogReader {
+    static final byte[] MAGIC = {'C', 'L', 'G', 'Z'};
+    static final int VERSION = 1;
+    static final int MAX_BLOCK = 256 * 1024 * 1024;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: CompressedLogReader <file.z.NNNN>...");
+            System.exit(2);
+        }
+        OutputStream out = new BufferedOutputStream(System.out, 64 * 1024);
+        Inflater inflater = new Inflater(true);
+        long raw = 0;
+        long compressed = 0;
+        for (String file : args) {
+            InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+            try {
+                long[] sizes = read(file, new DataInputStream(in), inflater, out);
+                raw += sizes[0];
+                compressed += sizes[1];
+            } finally {
+                in.close();
+            }
+        }
+        out.flush();
+        inflater.end();
+        if (compressed > 0) {
+            System.err.printf("%d bytes from %d compressed (%.1fx)%n", raw, compressed, (double) raw / compressed);
+        }
+    }
+
+    // returns {raw bytes, compressed bytes} of the file
+    static long[] read(String file, DataInputStream in, Inflater inflater, OutputStream out) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        try {
+            in.readFully(magic);
+        } catch (EOFException e) {
+            // created, nothing written yet
+            return new long[2];
+        }
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException(file + ": not a compressed crypto log");
+        }
+        int version = in.read();
+        if (version != VERSION) {
+            throw new IOException(file + ": unsupported version " + version);
+        }
+        long[] sizes = {0, MAGIC.length + 1};
+        CRC32 crc = new CRC32();
+        byte[] input = new byte[0];
+        byte[] output = new byte[0];
+        while (true) {
+            int rawLength;
+            int length;
+            int checksum;
+            try {
+                rawLength = in.readInt();
+            } catch (EOFException e) {
+                return sizes;
+            }
+            try {
+                length = in.readInt();
+                checksum = in.readInt();
+                if (rawLength < 0 || rawLength > MAX_BLOCK || length < 0 || length > MAX_BLOCK) {
+                    throw new IOException(file + ": bad block header");
+                }
+                if (input.length < length) {
+                    input = new byte[length];
+                }
+                in.readFully(input, 0, length);
+            } catch (EOFException e) {
+                // the app died in the middle of a write
+                System.err.println(file + ": truncated block at end of file");
+                return sizes;
+            }
+            if (output.length < rawLength) {
+                output = new byte[rawLength];
+            }
+            inflater.reset();
+            inflater.setInput(input, 0, length);
+            int n = 0;
+            try {
+                while (n < rawLength && !inflater.finished()) {
+                    int r = inflater.inflate(output, n, rawLength - n);
+                    if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    n += r;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException(file + ": corrupt block: " + e.getMessage());
+            }
+            crc.reset();
+            crc.update(output, 0, n);
+            if (n != rawLength || (int) crc.getValue() != checksum) {
+                throw new IOException(file + ": corrupt block at " + sizes[1]);
+            }
+            out.write(output, 0, n);
+            sizes[0] += n;
+            sizes[1] += 12 + length;
+        }
+    }
+}
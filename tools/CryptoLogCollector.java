@@ -0,0 +1,167 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+
+/**
+ * Host side end of sink.address (javax.crypto.SocketSink): accepts the
+ * connections of the monitored app processes and appends what they send
+ * to the same files the device would have written, under the output
+ * directory ("collected/com.hookme/Cipher", ...). Plain JVM, no
+ * dependencies:
+ * <pre>
+ * java tools/CryptoLogCollector.java --port 7000 --out collected
+ * adb reverse tcp:7000 tcp:7000                        sink.address=tcp:127.0.0.1:7000
+ * adb reverse localabstract:crypto_log tcp:7000        sink.address=localabstract:crypto_log
+ * </pre>
+ * Any number of processes can be connected at once; each frame is whole
+ * records, so frames from different processes never interleave inside a
+ * record. Lost frames are reported on stderr. The collected files are read
+ * with the other tools exactly like pulled ones. Listens on loopback only
+ * unless --bind is given.
+ */
+public class CryptoLogCollector {
+    static final byte[] MAGIC = {'C', 'L', 'O', 'G'};
+    static final int VERSION = 1;
+    static final int FRAME_HELLO = 'H';
+    static final int FRAME_DATA = 'D';
+    static final int FRAME_GAP = 'G';
+    static final int MAX_FRAME = 256 * 1024 * 1024;
+
+    private final File outDir;
+    private final HashMap<String, FileOutputStream> files = new HashMap<>();
+
+    CryptoLogCollector(File outDir) {
+        this.outDir = outDir;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = 7000;
+        String bind = "127.0.0.1";
+        File out = new File("collected");
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--out") && i + 1 < args.length) {
+                out = new File(args[++i]);
+            } else if (args[i].equals("--bind") && i + 1 < args.length) {
+                bind = args[++i];
+            } else {
+                System.err.println("usage: CryptoLogCollector [--port 7000] [--out collected] [--bind 127.0.0.1]");
+                System.exit(2);
+            }
+        }
+        CryptoLogCollector collector = new CryptoLogCollector(out);
+        ServerSocket server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(InetAddress.getByName(bind), port));
+        System.err.println("listening on " + server.getLocalSocketAddress() + ", writing to " + out);
+        while (true) {
+            final Socket socket = server.accept();
+            Thread t = new Thread(() -> collector.serve(socket), "collector-" + socket.getPort());
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    void serve(Socket socket) {
+        String peer = String.valueOf(socket.getRemoteSocketAddress());
+        long frames = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024))) {
+            String process = hello(in);
+            peer = peer + " (process started " + process + ")";
+            System.err.println("connected: " + peer);
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < 1 || length > MAX_FRAME) {
+                    throw new IOException("bad frame length " + length);
+                }
+                int type = in.readUnsignedByte();
+                if (type == FRAME_DATA) {
+                    int nameLength = in.readUnsignedShort();
+                    byte[] name = new byte[nameLength];
+                    in.readFully(name);
+                    byte[] data = new byte[length - 1 - 2 - nameLength];
+                    in.readFully(data);
+                    append(new String(name, StandardCharsets.UTF_8), data);
+                    frames++;
+                } else if (type == FRAME_GAP) {
+                    System.err.println(peer + ": " + in.readLong() + " frames lost");
+                } else {
+                    // newer frame types are skipped
+                    in.readFully(new byte[length - 1]);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println(peer + ": " + e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+        System.err.println("disconnected: " + peer + ", " + frames + " frames");
+    }
+
+    private static String hello(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        int type = in.readUnsignedByte();
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (type != FRAME_HELLO || length != 1 + MAGIC.length + 1 + 8 || !Arrays.equals(magic, MAGIC)) {
+            throw new IOException("not a crypto log stream");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported version " + version);
+        }
+        return String.valueOf(new Date(in.readLong()));
+    }
+
+    private void append(String name, byte[] data) throws IOException {
+        FileOutputStream out;
+        synchronized (files) {
+            out = files.get(name);
+            if (out == null) {
+                File file = new File(outDir, checkName(name));
+                File dir = file.getParentFile();
+                if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+                    throw new IOException("cannot create " + dir);
+                }
+                out = new FileOutputStream(file, true);
+                files.put(name, out);
+            }
+        }
+        synchronized (out) {
+            out.write(data);
+        }
+    }
+
+    // "com.hookme/Cipher"; nothing may end up outside the output directory
+    private static String checkName(String name) throws IOException {
+        if (name.isEmpty() || name.startsWith("/") || name.indexOf('\\') >= 0) {
+            throw new IOException("bad file name " + name);
+        }
+        for (String part : name.split("/")) {
+            if (part.isEmpty() || part.equals(".") || part.equals("..")) {
+                throw new IOException("bad file name " + name);
+            }
+        }
+        return name;
+    }
+}
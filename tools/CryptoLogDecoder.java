@@ -0,0 +1,336 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+
+/**
+ * Turns the binary logs written with log.format=binary (Cipher.bin, Mac.bin,
+ * MessageDigest.bin) back into the "CipherTag:{...}" lines of the JSON format.
+ * Plain JVM, no dependencies:
+ * <pre>
+ * adb pull /data/data/com.hookme/Cipher.bin
+ * java tools/CryptoLogDecoder.java Cipher.bin > Cipher.txt
+ * java tools/CryptoLogDecoder.java --inline-stacks Cipher.bin
+ * java tools/CryptoLogDecoder.java Cipher.bin.0*     # log.writer=mmap segments, in order
+ * java tools/CompressedLogReader.java Cipher.bin.z.* | java tools/CryptoLogDecoder.java -
+ * </pre>
+ * By default stacks come out as "StackTag:" definitions plus "StackId"
+ * references, like the text log with stack.dedup=true; --inline-stacks puts
+ * the Base64 "StackTrace" into every event instead. The record layout is
+ * described in javax.crypto.BinaryEventEncoder.
+ */
+public class CryptoLogDecoder {
+    static final int TYPE_STRING = 1;
+    static final int TYPE_LONG = 2;
+    static final int TYPE_BYTES = 3;
+    static final int TYPE_HEX = 4;
+    static final int TYPE_RAW_STRING = 5;
+
+    private final Writer out;
+    private final boolean inlineStacks;
+    private final ArrayList<String> strings = new ArrayList<>();
+    private final HashMap<Long, String> stacks = new HashMap<>();
+
+    CryptoLogDecoder(Writer out, boolean inlineStacks) {
+        this.out = out;
+        this.inlineStacks = inlineStacks;
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean inlineStacks = false;
+        ArrayList<String> files = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--inline-stacks")) {
+                inlineStacks = true;
+            } else {
+                files.add(arg);
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("usage: CryptoLogDecoder [--inline-stacks] <file.bin|->...");
+            System.exit(2);
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        // one decoder for all files: mmap segments continue the previous one's dictionary
+        CryptoLogDecoder decoder = new CryptoLogDecoder(out, inlineStacks);
+        for (String file : files) {
+            InputStream in = new BufferedInputStream(file.equals("-") ? System.in : new FileInputStream(file), 64 * 1024);
+            try {
+                decoder.decode(in);
+            } finally {
+                in.close();
+            }
+        }
+        out.flush();
+    }
+
+    void decode(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        while (true) {
+            int type = in.read();
+            if (type <= 0) {
+                // end of file, or the unused zero tail of an mmap segment
+                return;
+            }
+            byte[] payload;
+            try {
+                int len = (int) readVarint(in);
+                payload = new byte[len];
+                in.readFully(payload);
+            } catch (EOFException e) {
+                // the app died in the middle of a write
+                System.err.println("truncated record at end of file");
+                return;
+            }
+            Reader r = new Reader(payload);
+            switch (type) {
+                case 'H':
+                    if (payload.length < 5 || payload[0] != 'C' || payload[1] != 'L'
+                            || payload[2] != 'O' || payload[3] != 'G') {
+                        throw new IOException("not a crypto log file");
+                    }
+                    if (payload[4] != 1) {
+                        throw new IOException("unsupported version " + payload[4]);
+                    }
+                    strings.clear();
+                    stacks.clear();
+                    break;
+                case 'S': {
+                    int id = (int) r.varint();
+                    while (strings.size() <= id) {
+                        strings.add(null);
+                    }
+                    strings.set(id, r.rest());
+                    break;
+                }
+                case 'K': {
+                    long id = r.varint();
+                    String stack = r.rest();
+                    stacks.put(id, stack);
+                    if (!inlineStacks) {
+                        StringBuilder sb = new StringBuilder("StackTag:{\"StackId\":").append(id)
+                                .append(",\"StackTrace\":");
+                        quote(sb, base64(stack.getBytes(StandardCharsets.UTF_8)));
+                        out.write(sb.append("}\r\n").toString());
+                    }
+                    break;
+                }
+                case 'E':
+                    out.write(event(r));
+                    break;
+                default:
+                    // newer record type, skip it
+                    break;
+            }
+        }
+    }
+
+    private String event(Reader r) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(string(r.varint())).append('{');
+        long stackId = r.varint();
+        int fields = (int) r.varint();
+        boolean first = true;
+        for (int i = 0; i < fields; i++) {
+            int kind = r.u8();
+            switch (kind) {
+                case TYPE_STRING:
+                    first = name(sb, string(r.varint()), first);
+                    quote(sb, string(r.varint()));
+                    break;
+                case TYPE_RAW_STRING:
+                    first = name(sb, string(r.varint()), first);
+                    quote(sb, new String(r.bytes(), StandardCharsets.UTF_8));
+                    break;
+                case TYPE_LONG: {
+                    first = name(sb, string(r.varint()), first);
+                    long v = r.varint();
+                    sb.append((v >>> 1) ^ -(v & 1));
+                    break;
+                }
+                case TYPE_BYTES: {
+                    long name = r.varint();
+                    long base64Name = r.varint();
+                    byte[] b = r.bytes();
+                    if (name != 0) {
+                        first = name(sb, string(name - 1), first);
+                        quote(sb, byteArrayToString(b));
+                    }
+                    if (base64Name != 0) {
+                        first = name(sb, string(base64Name - 1), first);
+                        quote(sb, base64(b));
+                    }
+                    break;
+                }
+                case TYPE_HEX:
+                    first = name(sb, string(r.varint()), first);
+                    quote(sb, hex(r.bytes()));
+                    break;
+                default:
+                    throw new IllegalStateException("unknown field kind " + kind);
+            }
+        }
+        if (stackId != 0) {
+            String stack = stacks.get(stackId);
+            if (inlineStacks && stack != null) {
+                first = name(sb, "StackTrace", first);
+                quote(sb, base64(stack.getBytes(StandardCharsets.UTF_8)));
+            } else {
+                first = name(sb, "StackId", first);
+                sb.append(stackId);
+            }
+        }
+        return sb.append("}\r\n").toString();
+    }
+
+    private String string(long id) {
+        String s = id < strings.size() ? strings.get((int) id) : null;
+        if (s == null) {
+            throw new IllegalStateException("undefined string " + id);
+        }
+        return s;
+    }
+
+    private static boolean name(StringBuilder sb, String name, boolean first) {
+        if (!first) {
+            sb.append(',');
+        }
+        quote(sb, name);
+        sb.append(':');
+        return false;
+    }
+
+    /**
+     * Same escaping as Android's org.json.
+     */
+    static void quote(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    sb.append('\\').append(c);
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\b':
+                    sb.append("\\b");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\f':
+                    sb.append("\\f");
+                    break;
+                default:
+                    if (c <= 0x1f) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                    break;
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Same rule as javax.crypto.PayloadEncoder.byteArrayToString.
+     */
+    static String byteArrayToString(byte[] b) {
+        int printable = 0;
+        for (byte x : b) {
+            if (x >= 32 && x < 127) {
+                printable++;
+            }
+        }
+        if (printable <= b.length * 0.60) {
+            return base64(b);
+        }
+        char[] c = new char[b.length];
+        for (int i = 0; i < b.length; i++) {
+            c[i] = (b[i] >= 32 && b[i] < 127) ? (char) b[i] : '.';
+        }
+        return new String(c);
+    }
+
+    static String base64(byte[] b) {
+        return Base64.getEncoder().encodeToString(b);
+    }
+
+    static String hex(byte[] b) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] c = new char[b.length * 2];
+        for (int i = 0; i < b.length; i++) {
+            c[2 * i] = digits[(b[i] >> 4) & 0xf];
+            c[2 * i + 1] = digits[b[i] & 0xf];
+        }
+        return new String(c);
+    }
+
+    static long readVarint(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("bad varint");
+    }
+
+    private static final class Reader {
+        private final byte[] buf;
+        private int pos;
+
+        Reader(byte[] buf) {
+            this.buf = buf;
+        }
+
+        int u8() {
+            return buf[pos++] & 0xff;
+        }
+
+        long varint() {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = u8();
+                v |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IllegalStateException("bad varint");
+        }
+
+        byte[] bytes() {
+            int len = (int) varint();
+            byte[] b = new byte[len];
+            System.arraycopy(buf, pos, b, 0, len);
+            pos += len;
+            return b;
+        }
+
+        String rest() {
+            String s = new String(buf, pos, buf.length - pos, StandardCharsets.UTF_8);
+            pos = buf.length;
+            return s;
+        }
+    }
+}
@@ -0,0 +1,1150 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Offline index over captured logs, for questions like "every decryption
+ * with this key" without grepping the whole capture again. Reads the text
+ * logs (Cipher, Mac, MessageDigest as pulled or collected, mmap segments)
+ * and logcat dumps of the fishso logger, records split into content[i/N]
+ * fragments included; binary and compressed logs go through their tools
+ * first. Plain JVM, no dependencies:
+ * <pre>
+ * java tools/CryptoLogIndex.java index idx pulled/com.hookme/Cipher pulled/com.hookme/Mac logcat.txt
+ * java tools/CryptoLogDecoder.java Cipher.bin | java tools/CryptoLogIndex.java index idx --package com.hookme -
+ * java tools/CryptoLogIndex.java query idx --opmode decrypt --key 30313233343536373839313233343536
+ * java tools/CryptoLogIndex.java query idx --algorithm AES --class com.hookme.* --stacks
+ * java tools/CryptoLogIndex.java query idx --from "10-17 03:10:00" --to "10-17 03:15:00" --count
+ * </pre>
+ * Indexed are the tag (Cipher, CipherSession, Mac, MessageDigest),
+ * algorithm, transformation, opmode, key and iv (hex of the bytes),
+ * package, every app class on the stack (frames outside java., javax.,
+ * android., ...) and, for logcat lines, the time; the files carry none. A
+ * Cipher record that refers to a session gets the session's terms and is
+ * stored joined, KeyId/IvId references replaced by their KeyTag
+ * definition, the way tools/CipherSessionJoin prints it; a dedup repeat
+ * count gets the terms of the record its Hash names. Query values ending
+ * in '*' are prefixes, criteria are ANDed, and the matching records come
+ * out in input order.
+ *
+ * The index is a directory, rebuilt from the inputs on every index run;
+ * the query memory maps the .idx files (big endian):
+ * <pre>
+ * records.log   the records, one line each
+ * stacks.log    their decoded stacks, each distinct stack once
+ * records.idx   "CIDX" version:u8 pad[3], per record: offset:u64 length:u32 stackOffset:u64 stackLength:u32 time:u64
+ * terms.str     term keys, a field char followed by the value
+ * terms.idx     per term, sorted by key: keyOffset:u32 keyLength:u32 postings:u32 count:u32
+ * postings.idx  record numbers:u32, ascending per term
+ * time.idx      per record with a time, sorted: time:u64 record:u32
+ * </pre>
+ */
+public class CryptoLogIndex {
+    static final byte[] MAGIC = {'C', 'I', 'D', 'X'};
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 8;
+    static final int RECORD_ENTRY = 32;
+    static final int TERM_ENTRY = 16;
+    static final int TIME_ENTRY = 12;
+
+    static final String STACK_TAG = "StackTag:";
+    static final String SESSION_TAG = "CipherSessionTag:";
+    static final String CIPHER_TAG = "CipherTag:";
+    static final String KEY_TAG = "KeyTag:";
+    // fingerprint fields that refer to a KeyTag definition
+    static final String[] KEY_IDS = {"\"KeyId\"", "\"IvId\""};
+    static final String[] RECORD_TAGS = {CIPHER_TAG, SESSION_TAG, "MacTag:", "MessageDigestTag:"};
+
+    // first char of a term key
+    static final char TAG = 't';
+    static final char ALGORITHM = 'a';
+    static final char TRANSFORMATION = 'x';
+    static final char OPMODE = 'o';
+    static final char KEY = 'k';
+    static final char IV = 'i';
+    static final char PACKAGE = 'p';
+    static final char CLASS = 'c';
+
+    // stack frames of these packages are not call sites
+    static final String[] FRAMEWORK = {"java.", "javax.", "jdk.", "sun.", "android.", "com.android.",
+            "dalvik.", "libcore.", "org.apache.harmony.", "org.conscrypt."};
+
+    // fields of a session record that describe the init() call, not the operation
+    private static final String[] SESSION_ONLY = {"\"SessionId\"", "\"StackId\"", "\"StackTrace\"", "\"Hash\""};
+
+    // threadtime / time / brief logcat lines: time, pid, message
+    private static final Pattern THREADTIME = Pattern.compile(
+            "^((?:\\d{4}-)?\\d\\d-\\d\\d \\d\\d:\\d\\d:\\d\\d\\.\\d{3})\\s+(\\d+)\\s+\\d+\\s+[VDIWEF]\\s+[^:]*?\\s*: ?(.*)$");
+    private static final Pattern TIME = Pattern.compile(
+            "^((?:\\d{4}-)?\\d\\d-\\d\\d \\d\\d:\\d\\d:\\d\\d\\.\\d{3})\\s+[VDIWEF]/[^(]*\\(\\s*(\\d+)\\): ?(.*)$");
+    private static final Pattern BRIEF = Pattern.compile("^()[VDIWEF]/[^(]*\\(\\s*(\\d+)\\): ?(.*)$");
+    private static final Pattern FRAGMENT = Pattern.compile("^\\[(\\d+)/(\\d+)\\]:");
+
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 2 && args[0].equals("index")) {
+            index(args);
+        } else if (args.length >= 2 && args[0].equals("query")) {
+            query(args);
+        } else {
+            usage();
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: CryptoLogIndex index <dir> [--package name] [--year yyyy] <log|logcat dump|->...");
+        System.err.println("       CryptoLogIndex query <dir> [--tag Cipher] [--algorithm AES] [--transformation t]");
+        System.err.println("                      [--opmode decrypt] [--key hex|b64:..|text:..] [--iv ...]");
+        System.err.println("                      [--package name] [--class name] [--from time] [--to time]");
+        System.err.println("                      [--stacks] [--count] [--limit n]");
+        System.exit(2);
+    }
+
+    // ---- index ----
+
+    private static void index(String[] args) throws IOException {
+        File dir = new File(args[1]);
+        String packageName = null;
+        int year = LocalDateTime.now().getYear();
+        ArrayList<String> files = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("--package") && i + 1 < args.length) {
+                packageName = args[++i];
+            } else if (args[i].equals("--year") && i + 1 < args.length) {
+                year = Integer.parseInt(args[++i]);
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (files.isEmpty()) {
+            usage();
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        long started = System.currentTimeMillis();
+        Builder builder = new Builder(dir, year);
+        for (int source = 0; source < files.size(); source++) {
+            String file = files.get(source);
+            Reader in = new InputStreamReader(file.equals("-") ? System.in : new FileInputStream(file),
+                    StandardCharsets.UTF_8);
+            try {
+                builder.read(source, packageName, new BufferedReader(in, 64 * 1024),
+                        packageName != null ? packageName : packageOf(file));
+            } finally {
+                in.close();
+            }
+        }
+        builder.finish();
+        System.err.println(builder.count + " records, " + builder.postings.size() + " terms, "
+                + (System.currentTimeMillis() - started) + " ms");
+        if (builder.withoutPid > 0) {
+            System.err.println(builder.withoutPid + " session ids without a pid: records of processes that"
+                    + " wrote a file at the same time may be joined with the wrong session");
+        }
+    }
+
+    // false for ids written before they carried the pid in the high 32 bits
+    static boolean hasPid(String id) {
+        try {
+            return Long.parseLong(id) >>> 32 != 0;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    // "pulled/com.hookme/Cipher.0001" -> "com.hookme"
+    static String packageOf(String file) {
+        if (file.equals("-")) {
+            return "";
+        }
+        File parent = new File(file).getAbsoluteFile().getParentFile();
+        return parent == null ? "" : parent.getName();
+    }
+
+    /**
+     * Per process state of an input: StackId, SessionId and KeyId
+     * definitions, dedup hashes, and a record that is still arriving in
+     * fragments. A file gets one scope for all its processes, its StackId
+     * and SessionId carry the pid.
+     */
+    static final class Scope {
+        final HashMap<String, String> stacks = new HashMap<>();
+        final HashMap<String, LinkedHashMap<String, String>> keys = new HashMap<>();
+        final HashMap<String, LinkedHashMap<String, String>> sessions = new HashMap<>();
+        final HashMap<String, String[]> hashes = new HashMap<>();
+        String packageName;
+        // logcat lines of one pid, not a file
+        boolean logcat;
+        StringBuilder fragment;
+        long fragmentTime;
+    }
+
+    static final class Builder {
+        private final File dir;
+        private final int year;
+        private final DataOutputStream records;
+        private final DataOutputStream recordIndex;
+        private final DataOutputStream stacks;
+        private long recordBytes;
+        private long stackBytes;
+        private final HashMap<String, long[]> stackOffsets = new HashMap<>();
+        final HashMap<String, IntList> postings = new HashMap<>();
+        private final ArrayList<long[]> times = new ArrayList<>();
+        private final HashMap<String, Scope> scopes = new HashMap<>();
+        private final ArrayList<String> terms = new ArrayList<>();
+        int count;
+        // session references in files without a pid in the id, from logs that predate it
+        int withoutPid;
+
+        Builder(File dir, int year) throws IOException {
+            this.dir = dir;
+            this.year = year;
+            records = open("records.log");
+            stacks = open("stacks.log");
+            recordIndex = open("records.idx");
+            recordIndex.write(MAGIC);
+            recordIndex.writeByte(VERSION);
+            recordIndex.write(new byte[HEADER_BYTES - MAGIC.length - 1]);
+        }
+
+        private DataOutputStream open(String name) throws IOException {
+            return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, name)), 256 * 1024));
+        }
+
+        /**
+         * Reads one input. Plain log lines belong to filePackage, logcat
+         * lines to the package of their "filepath:" (or packageName).
+         */
+        void read(int source, String packageName, BufferedReader in, String filePackage) throws IOException {
+            String line;
+            while ((line = in.readLine()) != null) {
+                // the unused zero tail of an mmap segment
+                int nul = line.indexOf('\0');
+                if (nul >= 0) {
+                    line = line.substring(0, nul);
+                }
+                Matcher m = logcat(line);
+                if (m == null) {
+                    Scope scope = scope(source + ":", filePackage);
+                    record(scope, stripReturn(line), 0);
+                } else {
+                    Scope scope = scope(source + ":" + m.group(2), packageName == null ? "" : packageName);
+                    message(scope, stripReturn(m.group(3)), time(m.group(1)));
+                }
+            }
+        }
+
+        private Scope scope(String key, String packageName) {
+            Scope scope = scopes.get(key);
+            if (scope == null) {
+                scope = new Scope();
+                scope.packageName = packageName;
+                scope.logcat = !key.endsWith(":");
+                scopes.put(key, scope);
+            }
+            return scope;
+        }
+
+        // one logcat message: "filepath:...,content:..." / "...,content[i/N]:..." or a continuation line
+        private void message(Scope scope, String message, long time) throws IOException {
+            if (!message.startsWith("filepath:")) {
+                if (scope.fragment != null) {
+                    scope.fragment.append('\n').append(message);
+                } else {
+                    record(scope, message, time);
+                }
+                return;
+            }
+            int content = message.indexOf(",content");
+            if (content < 0) {
+                return;
+            }
+            String packageName = packageOf(message.substring("filepath:".length(), content));
+            if (!packageName.isEmpty()) {
+                scope.packageName = packageName;
+            }
+            String rest = message.substring(content + ",content".length());
+            if (rest.startsWith(":")) {
+                flushFragment(scope);
+                record(scope, rest.substring(1), time);
+                return;
+            }
+            Matcher m = FRAGMENT.matcher(rest);
+            if (!m.find()) {
+                return;
+            }
+            int part = Integer.parseInt(m.group(1));
+            int parts = Integer.parseInt(m.group(2));
+            if (part == 1) {
+                flushFragment(scope);
+                scope.fragment = new StringBuilder(parts * 4000);
+                scope.fragmentTime = time;
+            } else if (scope.fragment == null) {
+                // the start was not captured
+                return;
+            }
+            scope.fragment.append(rest, m.end(), rest.length());
+            if (part == parts) {
+                flushFragment(scope);
+            }
+        }
+
+        private void flushFragment(Scope scope) throws IOException {
+            if (scope.fragment == null) {
+                return;
+            }
+            String text = scope.fragment.toString();
+            scope.fragment = null;
+            for (String line : text.split("\n")) {
+                record(scope, stripReturn(line), scope.fragmentTime);
+            }
+        }
+
+        private void record(Scope scope, String line, long time) throws IOException {
+            if (line.startsWith(STACK_TAG)) {
+                LinkedHashMap<String, String> fields = fields(line.substring(STACK_TAG.length()));
+                if (fields != null && fields.containsKey("\"StackId\"") && fields.containsKey("\"StackTrace\"")) {
+                    scope.stacks.put(fields.get("\"StackId\""), unquote(fields.get("\"StackTrace\"")));
+                }
+                return;
+            }
+            if (line.startsWith(KEY_TAG)) {
+                LinkedHashMap<String, String> fields = fields(line.substring(KEY_TAG.length()));
+                for (String name : KEY_IDS) {
+                    String id = fields == null ? null : fields.remove(name);
+                    if (id != null) {
+                        scope.keys.put(name + id, fields);
+                    }
+                }
+                return;
+            }
+            String tag = null;
+            for (String t : RECORD_TAGS) {
+                if (line.startsWith(t)) {
+                    tag = t;
+                    break;
+                }
+            }
+            if (tag == null) {
+                return;
+            }
+            LinkedHashMap<String, String> fields = fields(line.substring(tag.length()));
+            if (fields == null) {
+                return;
+            }
+            String text = line;
+            LinkedHashMap<String, String> all = fields;
+            String sessionId = fields.get("\"SessionId\"");
+            if (sessionId != null) {
+                if (tag.equals(SESSION_TAG)) {
+                    LinkedHashMap<String, String> session = resolveKeys(scope, fields);
+                    if (session == fields) {
+                        session = new LinkedHashMap<>(fields);
+                    }
+                    for (String name : SESSION_ONLY) {
+                        session.remove(name);
+                    }
+                    scope.sessions.put(sessionId, session);
+                } else if (tag.equals(CIPHER_TAG)) {
+                    if (!scope.logcat && !hasPid(sessionId)) {
+                        withoutPid++;
+                    }
+                    LinkedHashMap<String, String> session = scope.sessions.get(sessionId);
+                    if (session != null) {
+                        all = merge(session, fields);
+                    }
+                }
+            }
+            all = resolveKeys(scope, all);
+            if (all != fields) {
+                text = tag + json(all);
+            }
+
+            String stack = null;
+            String stackTrace = fields.get("\"StackTrace\"");
+            if (stackTrace != null) {
+                stack = unquote(stackTrace);
+            } else if (fields.containsKey("\"StackId\"")) {
+                stack = scope.stacks.get(fields.get("\"StackId\""));
+            }
+            if (stack != null) {
+                try {
+                    stack = new String(Base64.getDecoder().decode(stack), StandardCharsets.UTF_8);
+                } catch (IllegalArgumentException e) {
+                    stack = null;
+                }
+            }
+
+            terms.clear();
+            String hash = fields.get("\"Hash\"");
+            String[] repeated = hash != null && fields.containsKey("\"repeat\"") ? scope.hashes.get(hash) : null;
+            if (repeated != null) {
+                terms.addAll(Arrays.asList(repeated));
+            } else {
+                terms(tag, all, scope.packageName, stack);
+                if (hash != null) {
+                    scope.hashes.put(hash, terms.toArray(new String[0]));
+                }
+            }
+            add(text, stack, time);
+        }
+
+        // the fields with each KeyId/IvId replaced, in place, by its definition
+        private LinkedHashMap<String, String> resolveKeys(Scope scope, LinkedHashMap<String, String> fields) {
+            boolean any = false;
+            for (String name : KEY_IDS) {
+                any |= fields.containsKey(name);
+            }
+            if (!any) {
+                return fields;
+            }
+            LinkedHashMap<String, String> resolved = new LinkedHashMap<>();
+            for (Map.Entry<String, String> e : fields.entrySet()) {
+                LinkedHashMap<String, String> key = scope.keys.get(e.getKey() + e.getValue());
+                if (key == null) {
+                    resolved.put(e.getKey(), e.getValue());
+                } else {
+                    resolved.putAll(key);
+                }
+            }
+            return resolved;
+        }
+
+        private void terms(String tag, Map<String, String> fields, String packageName, String stack) {
+            terms.add(TAG + tag.substring(0, tag.length() - "Tag:".length()));
+            String transformation = unquote(fields.get("\"transformation\""));
+            String algorithm = unquote(fields.get("\"algorithm\""));
+            if (algorithm == null) {
+                algorithm = unquote(fields.get("\"Algorithm\""));
+            }
+            if (algorithm == null && transformation != null) {
+                int slash = transformation.indexOf('/');
+                algorithm = slash < 0 ? transformation : transformation.substring(0, slash);
+            }
+            if (algorithm != null) {
+                terms.add(ALGORITHM + normalizeName(algorithm));
+            }
+            if (transformation != null) {
+                terms.add(TRANSFORMATION + normalizeName(transformation));
+            }
+            String opmode = unquote(fields.get("\"opmode\""));
+            if (opmode != null) {
+                terms.add(OPMODE + normalizeOpmode(opmode));
+            }
+            String key = base64ToHex(unquote(fields.get("\"Key(Base64)\"")));
+            if (key != null) {
+                terms.add(KEY + key);
+            }
+            String iv = base64ToHex(unquote(fields.get("\"Iv(Base64)\"")));
+            if (iv != null) {
+                terms.add(IV + iv);
+            }
+            if (packageName != null && !packageName.isEmpty()) {
+                terms.add(PACKAGE + packageName);
+            }
+            if (stack != null) {
+                for (String frame : stack.split("\n")) {
+                    String cls = frameClass(frame);
+                    if (cls != null && !isFramework(cls) && !terms.contains(CLASS + cls)) {
+                        terms.add(CLASS + cls);
+                    }
+                }
+            }
+        }
+
+        private void add(String text, String stack, long time) throws IOException {
+            int id = count++;
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            records.write(bytes);
+            records.write('\n');
+            long[] stackAt = {-1, 0};
+            if (stack != null) {
+                stackAt = stackOffsets.get(stack);
+                if (stackAt == null) {
+                    byte[] s = stack.getBytes(StandardCharsets.UTF_8);
+                    stackAt = new long[]{stackBytes, s.length};
+                    stacks.write(s);
+                    stacks.write('\n');
+                    stackBytes += s.length + 1;
+                    stackOffsets.put(stack, stackAt);
+                }
+            }
+            recordIndex.writeLong(recordBytes);
+            recordIndex.writeInt(bytes.length);
+            recordIndex.writeLong(stackAt[0]);
+            recordIndex.writeInt((int) stackAt[1]);
+            recordIndex.writeLong(time);
+            recordBytes += bytes.length + 1;
+            for (String term : terms) {
+                IntList list = postings.get(term);
+                if (list == null) {
+                    list = new IntList();
+                    postings.put(term, list);
+                }
+                list.add(id);
+            }
+            if (time != 0) {
+                times.add(new long[]{time, id});
+            }
+        }
+
+        void finish() throws IOException {
+            for (Scope scope : scopes.values()) {
+                flushFragment(scope);
+            }
+            records.close();
+            stacks.close();
+            recordIndex.close();
+
+            String[] keys = postings.keySet().toArray(new String[0]);
+            Arrays.sort(keys);
+            try (DataOutputStream str = open("terms.str");
+                 DataOutputStream index = open("terms.idx");
+                 DataOutputStream lists = open("postings.idx")) {
+                long keyOffset = 0;
+                long listOffset = 0;
+                for (String key : keys) {
+                    byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+                    IntList list = postings.get(key);
+                    str.write(bytes);
+                    index.writeInt((int) keyOffset);
+                    index.writeInt(bytes.length);
+                    index.writeInt((int) listOffset);
+                    index.writeInt(list.size);
+                    for (int i = 0; i < list.size; i++) {
+                        lists.writeInt(list.values[i]);
+                    }
+                    keyOffset += bytes.length;
+                    listOffset += list.size;
+                }
+            }
+
+            times.sort((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+            try (DataOutputStream out = open("time.idx")) {
+                for (long[] t : times) {
+                    out.writeLong(t[0]);
+                    out.writeInt((int) t[1]);
+                }
+            }
+        }
+
+        private long time(String text) {
+            return text.isEmpty() ? 0 : parseTime(text, year);
+        }
+    }
+
+    static Matcher logcat(String line) {
+        if (line.isEmpty() || line.startsWith(STACK_TAG)) {
+            return null;
+        }
+        for (Pattern p : new Pattern[]{THREADTIME, TIME, BRIEF}) {
+            Matcher m = p.matcher(line);
+            if (m.matches()) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    private static String stripReturn(String s) {
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+
+    // "javax.crypto.Cipher.init() 1279 <- " -> "javax.crypto.Cipher"
+    static String frameClass(String frame) {
+        int paren = frame.indexOf('(');
+        if (paren < 0) {
+            return null;
+        }
+        int dot = frame.lastIndexOf('.', paren);
+        return dot <= 0 ? null : frame.substring(0, dot).trim();
+    }
+
+    static boolean isFramework(String cls) {
+        for (String prefix : FRAMEWORK) {
+            if (cls.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static String normalizeName(String name) {
+        return name.trim().toUpperCase();
+    }
+
+    // "decrypt", "DECRYPT_MODE" -> "DECRYPT_MODE"
+    static String normalizeOpmode(String opmode) {
+        String s = opmode.trim().toUpperCase();
+        return s.endsWith("_MODE") || s.endsWith("*") ? s : s + "_MODE";
+    }
+
+    static String base64ToHex(String base64) {
+        if (base64 == null) {
+            return null;
+        }
+        try {
+            return hex(Base64.getDecoder().decode(base64));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(digits[(b >> 4) & 0xf]).append(digits[b & 0xf]);
+        }
+        return sb.toString();
+    }
+
+    // "MM-dd HH:mm:ss[.SSS]", "yyyy-MM-dd HH:mm:ss[.SSS]" in local time, or epoch millis
+    static long parseTime(String text, int year) {
+        String s = text.trim();
+        if (s.matches("\\d{9,}")) {
+            return Long.parseLong(s);
+        }
+        if (s.matches("\\d\\d-\\d\\d .*")) {
+            s = year + "-" + s;
+        }
+        if (s.matches(".* \\d\\d:\\d\\d")) {
+            s = s + ":00";
+        }
+        try {
+            DateTimeFormatter format = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss[.SSS]");
+            return LocalDateTime.parse(s, format).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("bad time " + text);
+        }
+    }
+
+    static final class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int v) {
+            // a record adds each term once, and in order
+            if (size > 0 && values[size - 1] == v) {
+                return;
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = v;
+        }
+    }
+
+    // ---- query ----
+
+    private static void query(String[] args) throws IOException {
+        File dir = new File(args[1]);
+        ArrayList<String> terms = new ArrayList<>();
+        String from = null;
+        String to = null;
+        boolean printStacks = false;
+        boolean countOnly = false;
+        long limit = Long.MAX_VALUE;
+        for (int i = 2; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--stacks")) {
+                printStacks = true;
+                continue;
+            }
+            if (arg.equals("--count")) {
+                countOnly = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                usage();
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--tag":
+                    terms.add(TAG + value);
+                    break;
+                case "--algorithm":
+                    terms.add(ALGORITHM + normalizeName(value));
+                    break;
+                case "--transformation":
+                    terms.add(TRANSFORMATION + normalizeName(value));
+                    break;
+                case "--opmode":
+                    terms.add(OPMODE + normalizeOpmode(value));
+                    break;
+                case "--key":
+                    terms.add(KEY + bytesArgument(value));
+                    break;
+                case "--iv":
+                    terms.add(IV + bytesArgument(value));
+                    break;
+                case "--package":
+                    terms.add(PACKAGE + value);
+                    break;
+                case "--class":
+                    terms.add(CLASS + value);
+                    break;
+                case "--from":
+                    from = value;
+                    break;
+                case "--to":
+                    to = value;
+                    break;
+                case "--limit":
+                    limit = Long.parseLong(value);
+                    break;
+                default:
+                    usage();
+            }
+        }
+
+        long started = System.nanoTime();
+        try (Index index = new Index(dir)) {
+            ArrayList<int[]> sets = new ArrayList<>();
+            for (String term : terms) {
+                sets.add(index.lookup(term));
+            }
+            if (from != null || to != null) {
+                int year = LocalDateTime.now().getYear();
+                sets.add(index.timeRange(from == null ? Long.MIN_VALUE : parseTime(from, year),
+                        to == null ? Long.MAX_VALUE : parseTime(to, year)));
+            }
+            int[] result = sets.isEmpty() ? index.all() : intersect(sets);
+            if (countOnly) {
+                System.out.println(result.length);
+            } else {
+                Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+                for (int i = 0; i < result.length && i < limit; i++) {
+                    out.write(index.record(result[i]));
+                    out.write("\r\n");
+                    if (printStacks) {
+                        String stack = index.stack(result[i]);
+                        if (stack != null) {
+                            for (String frame : stack.split("\n")) {
+                                out.write("    ");
+                                out.write(frame);
+                                out.write("\r\n");
+                            }
+                        }
+                    }
+                }
+                out.flush();
+            }
+            System.err.printf("%d matches of %d records, %.1f ms%n", result.length, index.records,
+                    (System.nanoTime() - started) / 1e6);
+        }
+    }
+
+    // key and iv arguments: hex (default), b64:... or text:...
+    static String bytesArgument(String value) {
+        if (value.startsWith("b64:")) {
+            String hex = base64ToHex(value.substring(4));
+            if (hex == null) {
+                throw new IllegalArgumentException("bad base64 " + value);
+            }
+            return hex;
+        }
+        if (value.startsWith("text:")) {
+            return hex(value.substring(5).getBytes(StandardCharsets.UTF_8));
+        }
+        String hex = value.startsWith("hex:") ? value.substring(4) : value;
+        return hex.replace(" ", "").replace(":", "").toLowerCase();
+    }
+
+    static int[] intersect(ArrayList<int[]> sets) {
+        sets.sort((a, b) -> Integer.compare(a.length, b.length));
+        int[] result = sets.get(0);
+        for (int s = 1; s < sets.size() && result.length > 0; s++) {
+            int[] other = sets.get(s);
+            int[] out = new int[result.length];
+            int n = 0;
+            if ((long) result.length * 16 < other.length) {
+                // much smaller: look each one up
+                for (int v : result) {
+                    if (Arrays.binarySearch(other, v) >= 0) {
+                        out[n++] = v;
+                    }
+                }
+            } else {
+                int j = 0;
+                for (int v : result) {
+                    while (j < other.length && other[j] < v) {
+                        j++;
+                    }
+                    if (j < other.length && other[j] == v) {
+                        out[n++] = v;
+                    }
+                }
+            }
+            result = Arrays.copyOf(out, n);
+        }
+        return result;
+    }
+
+    /**
+     * The memory mapped index of a directory written by the index command.
+     */
+    static final class Index implements AutoCloseable {
+        private final RandomAccessFile recordLog;
+        private final RandomAccessFile stackLog;
+        private final ByteBuffer recordIndex;
+        private final ByteBuffer termIndex;
+        private final ByteBuffer termKeys;
+        private final IntBuffer postings;
+        private final ByteBuffer timeIndex;
+        final int records;
+        private final int terms;
+
+        Index(File dir) throws IOException {
+            recordIndex = map(new File(dir, "records.idx"));
+            byte[] magic = new byte[MAGIC.length];
+            recordIndex.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(dir + ": not a crypto log index");
+            }
+            int version = recordIndex.get() & 0xff;
+            if (version != VERSION) {
+                throw new IOException(dir + ": unsupported version " + version);
+            }
+            records = (recordIndex.capacity() - HEADER_BYTES) / RECORD_ENTRY;
+            termIndex = map(new File(dir, "terms.idx"));
+            terms = termIndex.capacity() / TERM_ENTRY;
+            termKeys = map(new File(dir, "terms.str"));
+            postings = map(new File(dir, "postings.idx")).asIntBuffer();
+            timeIndex = map(new File(dir, "time.idx"));
+            recordLog = new RandomAccessFile(new File(dir, "records.log"), "r");
+            stackLog = new RandomAccessFile(new File(dir, "stacks.log"), "r");
+        }
+
+        private static MappedByteBuffer map(File file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath())) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException(file + " is too large to map");
+                }
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+
+        private String key(int term) {
+            int at = term * TERM_ENTRY;
+            byte[] bytes = new byte[termIndex.getInt(at + 4)];
+            ByteBuffer b = termKeys.duplicate();
+            b.position(termIndex.getInt(at));
+            b.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        // first term whose key is not below key
+        private int lowerBound(String key) {
+            int lo = 0;
+            int hi = terms;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (key(mid).compareTo(key) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        private int[] postings(int term) {
+            int at = term * TERM_ENTRY;
+            int[] ids = new int[termIndex.getInt(at + 12)];
+            IntBuffer b = postings.duplicate();
+            b.position(termIndex.getInt(at + 8));
+            b.get(ids);
+            return ids;
+        }
+
+        /**
+         * Records with the term, or with any term starting with it when it
+         * ends in '*'.
+         */
+        int[] lookup(String term) {
+            if (!term.endsWith("*")) {
+                int t = lowerBound(term);
+                return t < terms && key(t).equals(term) ? postings(t) : new int[0];
+            }
+            String prefix = term.substring(0, term.length() - 1);
+            ArrayList<int[]> lists = new ArrayList<>();
+            int total = 0;
+            for (int t = lowerBound(prefix); t < terms && key(t).startsWith(prefix); t++) {
+                int[] ids = postings(t);
+                lists.add(ids);
+                total += ids.length;
+            }
+            if (lists.size() == 1) {
+                return lists.get(0);
+            }
+            int[] all = new int[total];
+            int n = 0;
+            for (int[] ids : lists) {
+                System.arraycopy(ids, 0, all, n, ids.length);
+                n += ids.length;
+            }
+            Arrays.sort(all);
+            return distinct(all);
+        }
+
+        int[] timeRange(long from, long to) {
+            int entries = timeIndex.capacity() / TIME_ENTRY;
+            int lo = 0;
+            int hi = entries;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (timeIndex.getLong(mid * TIME_ENTRY) < from) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            IntList ids = new IntList();
+            for (int i = lo; i < entries && timeIndex.getLong(i * TIME_ENTRY) <= to; i++) {
+                ids.add(timeIndex.getInt(i * TIME_ENTRY + 8));
+            }
+            int[] result = Arrays.copyOf(ids.values, ids.size);
+            Arrays.sort(result);
+            return result;
+        }
+
+        int[] all() {
+            int[] ids = new int[records];
+            for (int i = 0; i < records; i++) {
+                ids[i] = i;
+            }
+            return ids;
+        }
+
+        String record(int id) throws IOException {
+            int at = HEADER_BYTES + id * RECORD_ENTRY;
+            return read(recordLog, recordIndex.getLong(at), recordIndex.getInt(at + 8));
+        }
+
+        String stack(int id) throws IOException {
+            int at = HEADER_BYTES + id * RECORD_ENTRY;
+            long offset = recordIndex.getLong(at + 12);
+            return offset < 0 ? null : read(stackLog, offset, recordIndex.getInt(at + 20));
+        }
+
+        private static String read(RandomAccessFile file, long offset, int length) throws IOException {
+            byte[] bytes = new byte[length];
+            file.seek(offset);
+            file.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            recordLog.close();
+            stackLog.close();
+        }
+    }
+
+    private static int[] distinct(int[] sorted) {
+        int n = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (n == 0 || sorted[n - 1] != sorted[i]) {
+                sorted[n++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, n);
+    }
+
+    // ---- flat JSON, as in tools/CipherSessionJoin ----
+
+    // session fields first, then the record's own; the record wins on a name clash
+    static LinkedHashMap<String, String> merge(Map<String, String> session, Map<String, String> record) {
+        LinkedHashMap<String, String> merged = new LinkedHashMap<>();
+        for (Map.Entry<String, String> e : session.entrySet()) {
+            if (!record.containsKey(e.getKey())) {
+                merged.put(e.getKey(), e.getValue());
+            }
+        }
+        merged.putAll(record);
+        return merged;
+    }
+
+    // raw fields back to a JSON object
+    static String json(Map<String, String> fields) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append('{');
+        for (Map.Entry<String, String> e : fields.entrySet()) {
+            sb.append(sb.length() > 1 ? "," : "").append(e.getKey()).append(':').append(e.getValue());
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * The string value of a raw JSON value, null when it is missing or not a
+     * string.
+     */
+    static String unquote(String raw) {
+        if (raw == null || raw.length() < 2 || raw.charAt(0) != '"') {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(raw.length());
+        for (int i = 1; i < raw.length() - 1; i++) {
+            char c = raw.charAt(i);
+            if (c != '\\' || i + 1 >= raw.length() - 1) {
+                sb.append(c);
+                continue;
+            }
+            c = raw.charAt(++i);
+            switch (c) {
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'u':
+                    if (i + 4 < raw.length()) {
+                        sb.append((char) Integer.parseInt(raw.substring(i + 1, i + 5), 16));
+                        i += 4;
+                    }
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Top level fields of a flat JSON object, keys and values kept as raw
+     * JSON text (keys with their quotes). Null when the text is not one.
+     */
+    static LinkedHashMap<String, String> fields(String json) {
+        LinkedHashMap<String, String> fields = new LinkedHashMap<>();
+        int i = skipSpace(json, 0);
+        if (i >= json.length() || json.charAt(i) != '{') {
+            return null;
+        }
+        i = skipSpace(json, i + 1);
+        if (i < json.length() && json.charAt(i) == '}') {
+            return fields;
+        }
+        while (i < json.length()) {
+            if (json.charAt(i) != '"') {
+                return null;
+            }
+            int keyEnd = endOfString(json, i);
+            if (keyEnd < 0) {
+                return null;
+            }
+            String key = json.substring(i, keyEnd);
+            i = skipSpace(json, keyEnd);
+            if (i >= json.length() || json.charAt(i) != ':') {
+                return null;
+            }
+            i = skipSpace(json, i + 1);
+            int valueEnd = endOfValue(json, i);
+            if (valueEnd < 0) {
+                return null;
+            }
+            fields.put(key, json.substring(i, valueEnd).trim());
+            i = skipSpace(json, valueEnd);
+            if (i >= json.length()) {
+                return null;
+            }
+            char c = json.charAt(i);
+            if (c == '}') {
+                return fields;
+            }
+            if (c != ',') {
+                return null;
+            }
+            i = skipSpace(json, i + 1);
+        }
+        return null;
+    }
+
+    // index after the closing quote of the string starting at start
+    private static int endOfString(String s, int start) {
+        for (int i = start + 1; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    // values of these records are strings or numbers; nested values are skipped whole
+    private static int endOfValue(String s, int start) {
+        if (start >= s.length()) {
+            return -1;
+        }
+        char c = s.charAt(start);
+        if (c == '"') {
+            return endOfString(s, start);
+        }
+        int depth = 0;
+        for (int i = start; i < s.length(); i++) {
+            c = s.charAt(i);
+            if (c == '"') {
+                i = endOfString(s, i) - 1;
+                if (i < 0) {
+                    return -1;
+                }
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (depth == 0) {
+                    return i;
+                }
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipSpace(String s, int i) {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+}